@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+
+import org.lineageos.updater.MirrorsDbHelper.MirrorsEntry;
+
+/**
+ * Download sessions table of {@link UpdatesDbHelper#DATABASE_NAME}. A session
+ * lasts from the moment the server answers until the download stops, and its
+ * row is checkpointed while the download runs. The sessions of an update go
+ * away with its mirror row.
+ */
+public class DownloadSessionsDbHelper {
+
+    private static DownloadSessionsDbHelper sInstance;
+
+    // Number of recent sessions averaged to estimate the download speed
+    private static final int SPEED_SESSIONS = 5;
+
+    public static class DownloadSessionEntry implements BaseColumns {
+        public static final String TABLE_NAME = "download_sessions";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_STARTED = "started";
+        public static final String COLUMN_NAME_START_OFFSET = "start_offset";
+        public static final String COLUMN_NAME_BYTES = "bytes";
+        public static final String COLUMN_NAME_DURATION = "duration";
+        public static final String COLUMN_NAME_HOST = "host";
+        public static final String COLUMN_NAME_NETWORK_TYPE = "network_type";
+    }
+
+    static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE " + DownloadSessionEntry.TABLE_NAME + " (" +
+                    DownloadSessionEntry._ID + " INTEGER PRIMARY KEY," +
+                    DownloadSessionEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL REFERENCES " +
+                    MirrorsEntry.TABLE_NAME + "(" + MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID +
+                    ") ON DELETE CASCADE," +
+                    DownloadSessionEntry.COLUMN_NAME_STARTED + " INTEGER," +
+                    DownloadSessionEntry.COLUMN_NAME_START_OFFSET + " INTEGER," +
+                    DownloadSessionEntry.COLUMN_NAME_BYTES + " INTEGER DEFAULT 0," +
+                    DownloadSessionEntry.COLUMN_NAME_DURATION + " INTEGER DEFAULT 0," +
+                    DownloadSessionEntry.COLUMN_NAME_HOST + " TEXT," +
+                    DownloadSessionEntry.COLUMN_NAME_NETWORK_TYPE + " TEXT)";
+
+    static final String SQL_CREATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + DownloadSessionEntry.TABLE_NAME + "_download_id ON " +
+                    DownloadSessionEntry.TABLE_NAME + " (" +
+                    DownloadSessionEntry.COLUMN_NAME_DOWNLOAD_ID + ")";
+
+    private static final String SQL_CHECKPOINT =
+            "UPDATE " + DownloadSessionEntry.TABLE_NAME + " SET " +
+                    DownloadSessionEntry.COLUMN_NAME_BYTES + " = ?, " +
+                    DownloadSessionEntry.COLUMN_NAME_DURATION + " = ? WHERE " +
+                    DownloadSessionEntry._ID + " = ?";
+
+    private static final String SQL_RECENT_SESSIONS =
+            "SELECT " + DownloadSessionEntry.COLUMN_NAME_BYTES + "," +
+                    DownloadSessionEntry.COLUMN_NAME_DURATION + " FROM " +
+                    DownloadSessionEntry.TABLE_NAME + " WHERE %s AND " +
+                    DownloadSessionEntry.COLUMN_NAME_NETWORK_TYPE + " = ? AND " +
+                    DownloadSessionEntry.COLUMN_NAME_BYTES + " > 0 AND " +
+                    DownloadSessionEntry.COLUMN_NAME_DURATION + " > 0 ORDER BY " +
+                    DownloadSessionEntry._ID + " DESC LIMIT " + SPEED_SESSIONS;
+
+    private final UpdatesDbHelper mDbHelper;
+
+    public static synchronized DownloadSessionsDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DownloadSessionsDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DownloadSessionsDbHelper(Context context) {
+        mDbHelper = UpdatesDbHelper.getInstance(context);
+    }
+
+    static void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_INDEX);
+    }
+
+    /**
+     * @param startOffset bytes of the file already downloaded when the session started
+     * @return the id of the new session, -1 on error
+     */
+    public long startSession(String downloadId, long startOffset, String host,
+            String networkType) {
+        ContentValues values = new ContentValues();
+        values.put(DownloadSessionEntry.COLUMN_NAME_DOWNLOAD_ID, downloadId);
+        values.put(DownloadSessionEntry.COLUMN_NAME_STARTED, System.currentTimeMillis());
+        values.put(DownloadSessionEntry.COLUMN_NAME_START_OFFSET, startOffset);
+        values.put(DownloadSessionEntry.COLUMN_NAME_HOST, host);
+        values.put(DownloadSessionEntry.COLUMN_NAME_NETWORK_TYPE, networkType);
+        return mDbHelper.getWritableDatabase().insert(DownloadSessionEntry.TABLE_NAME, null,
+                values);
+    }
+
+    /**
+     * Save how far the given session got
+     *
+     * @param bytes bytes downloaded since the session started
+     * @param duration time elapsed since the session started, in milliseconds
+     */
+    public void checkpointSession(long sessionId, long bytes, long duration) {
+        SQLiteStatement statement = mDbHelper.getStatement(SQL_CHECKPOINT);
+        synchronized (statement) {
+            statement.bindLong(1, bytes);
+            statement.bindLong(2, duration);
+            statement.bindLong(3, sessionId);
+            statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Estimate the download speed from the recent sessions of the update on
+     * the same kind of network, or from the recent sessions of any update if
+     * the update was never downloaded on that network.
+     *
+     * @return the speed in bytes per second, -1 if unknown
+     */
+    public long getEstimatedSpeed(String downloadId, String networkType) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        String selection = DownloadSessionEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId, networkType};
+        long speed = getAverageSpeed(db, String.format(SQL_RECENT_SESSIONS, selection),
+                selectionArgs);
+        if (speed < 0) {
+            String[] anyUpdateArgs = {networkType};
+            speed = getAverageSpeed(db, String.format(SQL_RECENT_SESSIONS, "1"), anyUpdateArgs);
+        }
+        return speed;
+    }
+
+    private static long getAverageSpeed(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        long bytes = 0;
+        long duration = 0;
+        try (Cursor cursor = db.rawQuery(sql, selectionArgs)) {
+            while (cursor.moveToNext()) {
+                bytes += cursor.getLong(0);
+                duration += cursor.getLong(1);
+            }
+        }
+        return duration > 0 ? bytes * 1000 / duration : -1;
+    }
+}
@@ -27,11 +27,14 @@ import android.widget.Toast;
 
 import androidx.core.app.NotificationCompat;
 
+import org.lineageos.updater.misc.BackgroundExecutors;
 import org.lineageos.updater.misc.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ExportUpdateService extends Service {
 
@@ -50,7 +53,7 @@ public class ExportUpdateService extends Service {
 
     private volatile boolean mIsExporting = false;
 
-    private Thread mExportThread;
+    private Future<?> mExport;
     private ExportRunnable mExportRunnable;
 
     @Override
@@ -72,14 +75,9 @@ public class ExportUpdateService extends Service {
             startExporting(source, destination);
         } else if (ACTION_STOP_EXPORTING.equals(intent.getAction())) {
             if (mIsExporting) {
-                mExportThread.interrupt();
+                // The export deletes the partial copy once it notices
+                mExport.cancel(true);
                 stopForeground(true);
-                try {
-                    mExportThread.join();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Error while waiting for thread");
-                }
-                mExportRunnable.cleanUp();
                 mIsExporting = false;
             }
         } else {
@@ -115,16 +113,23 @@ public class ExportUpdateService extends Service {
             try {
                 FileUtils.copyFile(mSource, mDestination, mProgressCallBack);
                 mIsExporting = false;
-                if (!mExportThread.isInterrupted()) {
+                if (!Thread.currentThread().isInterrupted()) {
                     Log.d(TAG, "Completed");
                     mRunnableComplete.run();
                 } else {
                     Log.d(TAG, "Aborted");
+                    cleanUp();
                 }
             } catch (IOException e) {
                 mIsExporting = false;
-                Log.e(TAG, "Could not copy file", e);
-                mRunnableFailed.run();
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.d(TAG, "Aborted");
+                    cleanUp();
+                } else {
+                    Log.e(TAG, "Could not copy file", e);
+                    cleanUp();
+                    mRunnableFailed.run();
+                }
             } finally {
                 stopSelf();
             }
@@ -204,8 +209,15 @@ public class ExportUpdateService extends Service {
 
         mExportRunnable = new ExportRunnable(source, destination, progressCallBack,
                 runnableComplete, runnableFailed);
-        mExportThread = new Thread(mExportRunnable);
-        mExportThread.start();
+        try {
+            mExport = BackgroundExecutors.get(BackgroundExecutors.Pool.IO)
+                    .submit(mExportRunnable);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not start exporting", e);
+            mIsExporting = false;
+            runnableFailed.run();
+            stopSelf();
+        }
     }
 
     private PendingIntent getStopPendingIntent() {
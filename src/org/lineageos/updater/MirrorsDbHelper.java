@@ -4,15 +4,37 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
+import android.util.Log;
 
-public class MirrorsDbHelper extends SQLiteOpenHelper {
+import org.lineageos.updater.misc.BackgroundExecutors;
+import org.lineageos.updater.model.MirrorStats;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Mirror tables of {@link UpdatesDbHelper#DATABASE_NAME}. The mirror chosen
+ * for each update is kept in memory as well, so looking it up never touches
+ * the database. The mirror choices and the statistics recorded by the
+ * downloads are written on the database thread, the callers never wait for
+ * them.
+ */
+public class MirrorsDbHelper {
+
+    private static final String TAG = "MirrorsDbHelper";
 
     private static MirrorsDbHelper mirrorsDbHelper = null;
 
-    public static final int DATABASE_VERSION = 1;
-    public static final String MIRRORS_DATABASE_NAME = "mirrors.db";
+    // The mirrors used to have their own database, imported once in the shared one
+    private static final String LEGACY_DATABASE_NAME = "mirrors.db";
 
     public static class MirrorsEntry implements BaseColumns {
         public static final String TABLE_NAME = "mirrors";
@@ -21,17 +43,99 @@ public class MirrorsDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_MIRROR_URL = "mirror_url";
     }
 
-    private static final String SQL_CREATE_ENTRIES =
-            "CREATE TABLE " + MirrorsDbHelper.MirrorsEntry.TABLE_NAME + " (" +
+    public static class MirrorStatsEntry implements BaseColumns {
+        public static final String TABLE_NAME = "mirror_stats";
+        public static final String COLUMN_NAME_HOST = "host";
+        public static final String COLUMN_NAME_LATENCY = "latency";
+        public static final String COLUMN_NAME_THROUGHPUT = "throughput";
+        public static final String COLUMN_NAME_SUCCESSES = "successes";
+        public static final String COLUMN_NAME_FAILURES = "failures";
+        public static final String COLUMN_NAME_LAST_SEEN = "last_seen";
+        public static final String COLUMN_NAME_FIRST_BYTE_TIME = "first_byte_time";
+    }
+
+    public static class SourceForgeMirrorsEntry implements BaseColumns {
+        public static final String TABLE_NAME = "sf_mirrors";
+        public static final String COLUMN_NAME_MIRROR_ID = "mirror_id";
+        public static final String COLUMN_NAME_PLACE = "place";
+        public static final String COLUMN_NAME_FETCHED = "fetched";
+    }
+
+    static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE " + MirrorsEntry.TABLE_NAME + " (" +
                     MirrorsEntry._ID + " INTEGER PRIMARY KEY," +
                     MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
                     MirrorsEntry.COLUMN_NAME_MIRROR + " TEXT," +
                     MirrorsEntry.COLUMN_NAME_MIRROR_URL + " TEXT)";
 
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + MirrorsDbHelper.MirrorsEntry.TABLE_NAME;
+    static final String SQL_CREATE_STATS_ENTRIES =
+            "CREATE TABLE " + MirrorStatsEntry.TABLE_NAME + " (" +
+                    MirrorStatsEntry._ID + " INTEGER PRIMARY KEY," +
+                    MirrorStatsEntry.COLUMN_NAME_HOST + " TEXT NOT NULL UNIQUE," +
+                    MirrorStatsEntry.COLUMN_NAME_LATENCY + " REAL," +
+                    MirrorStatsEntry.COLUMN_NAME_THROUGHPUT + " REAL," +
+                    MirrorStatsEntry.COLUMN_NAME_SUCCESSES + " INTEGER," +
+                    MirrorStatsEntry.COLUMN_NAME_FAILURES + " INTEGER," +
+                    MirrorStatsEntry.COLUMN_NAME_LAST_SEEN + " INTEGER," +
+                    MirrorStatsEntry.COLUMN_NAME_FIRST_BYTE_TIME + " REAL)";
+
+    static final String SQL_CREATE_SF_ENTRIES =
+            "CREATE TABLE " + SourceForgeMirrorsEntry.TABLE_NAME + " (" +
+                    SourceForgeMirrorsEntry._ID + " INTEGER PRIMARY KEY," +
+                    SourceForgeMirrorsEntry.COLUMN_NAME_MIRROR_ID + " TEXT NOT NULL UNIQUE," +
+                    SourceForgeMirrorsEntry.COLUMN_NAME_PLACE + " TEXT," +
+                    SourceForgeMirrorsEntry.COLUMN_NAME_FETCHED + " INTEGER)";
+
+    static final String SQL_ADD_UPDATE =
+            "INSERT OR IGNORE INTO " + MirrorsEntry.TABLE_NAME + " (" +
+                    MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + ") VALUES (?)";
+
+    private static final String SQL_SET_MIRROR_URL =
+            "UPDATE " + MirrorsEntry.TABLE_NAME + " SET " + MirrorsEntry.COLUMN_NAME_MIRROR_URL +
+                    " = ? WHERE " + MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
 
-    public static MirrorsDbHelper getInstance(Context context) {
+    private static final String SQL_SET_MIRROR_NAME =
+            "UPDATE " + MirrorsEntry.TABLE_NAME + " SET " + MirrorsEntry.COLUMN_NAME_MIRROR +
+                    " = ? WHERE " + MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String SQL_SAVE_MIRROR_STATS =
+            "INSERT OR REPLACE INTO " + MirrorStatsEntry.TABLE_NAME + " (" +
+                    MirrorStatsEntry.COLUMN_NAME_HOST + "," +
+                    MirrorStatsEntry.COLUMN_NAME_LATENCY + "," +
+                    MirrorStatsEntry.COLUMN_NAME_THROUGHPUT + "," +
+                    MirrorStatsEntry.COLUMN_NAME_SUCCESSES + "," +
+                    MirrorStatsEntry.COLUMN_NAME_FAILURES + "," +
+                    MirrorStatsEntry.COLUMN_NAME_LAST_SEEN + "," +
+                    MirrorStatsEntry.COLUMN_NAME_FIRST_BYTE_TIME + ") VALUES (?,?,?,?,?,?,?)";
+
+    // Order of the columns read by readMirrorStats()
+    private static final String[] MIRROR_STATS_PROJECTION = {
+            MirrorStatsEntry.COLUMN_NAME_HOST,
+            MirrorStatsEntry.COLUMN_NAME_LATENCY,
+            MirrorStatsEntry.COLUMN_NAME_THROUGHPUT,
+            MirrorStatsEntry.COLUMN_NAME_SUCCESSES,
+            MirrorStatsEntry.COLUMN_NAME_FAILURES,
+            MirrorStatsEntry.COLUMN_NAME_LAST_SEEN,
+            MirrorStatsEntry.COLUMN_NAME_FIRST_BYTE_TIME,
+    };
+
+    private final UpdatesDbHelper mDbHelper;
+    private final Map<String, MirrorSelection> mSelections = new ConcurrentHashMap<>();
+    // Single thread, the writes are done in order
+    private final ExecutorService mExecutor =
+            BackgroundExecutors.get(BackgroundExecutors.Pool.DB);
+
+    private static class MirrorSelection {
+        private final String mName;
+        private final String mUrl;
+
+        private MirrorSelection(String name, String url) {
+            mName = name;
+            mUrl = url;
+        }
+    }
+
+    public static synchronized MirrorsDbHelper getInstance(Context context) {
         if (mirrorsDbHelper == null) {
             mirrorsDbHelper = new MirrorsDbHelper(context.getApplicationContext());
         }
@@ -39,99 +143,343 @@ public class MirrorsDbHelper extends SQLiteOpenHelper {
     }
 
     private MirrorsDbHelper(Context context) {
-        super(context, MIRRORS_DATABASE_NAME, null, DATABASE_VERSION);
+        mDbHelper = UpdatesDbHelper.getInstance(context);
+        importLegacyDatabase(context);
+        loadMirrorSelections();
     }
 
-    public void onCreate(SQLiteDatabase db) {
+    static void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_STATS_ENTRIES);
+        db.execSQL(SQL_CREATE_SF_ENTRIES);
     }
 
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+    /**
+     * Move the content of the database the mirrors had before they joined
+     * the updates database, then delete it.
+     */
+    private void importLegacyDatabase(Context context) {
+        File legacyDatabase = context.getDatabasePath(LEGACY_DATABASE_NAME);
+        if (!legacyDatabase.exists()) {
+            return;
+        }
+        Log.d(TAG, "Importing " + legacyDatabase.getAbsolutePath());
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        try (SQLiteDatabase legacyDb = SQLiteDatabase.openDatabase(
+                legacyDatabase.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY)) {
+            db.beginTransaction();
+            try {
+                importLegacyTable(legacyDb, db, MirrorsEntry.TABLE_NAME,
+                        MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID);
+                importLegacyTable(legacyDb, db, MirrorStatsEntry.TABLE_NAME,
+                        MirrorStatsEntry.COLUMN_NAME_HOST);
+                importLegacyTable(legacyDb, db, SourceForgeMirrorsEntry.TABLE_NAME,
+                        SourceForgeMirrorsEntry.COLUMN_NAME_MIRROR_ID);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Could not import " + legacyDatabase.getAbsolutePath(), e);
+        }
+        context.deleteDatabase(LEGACY_DATABASE_NAME);
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+    private static void importLegacyTable(SQLiteDatabase from, SQLiteDatabase to, String table,
+            String keyColumn) {
+        try (Cursor cursor = from.query(table, null, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    String column = cursor.getColumnName(i);
+                    if (BaseColumns._ID.equals(column)) {
+                        continue;
+                    }
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values.put(column, cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values.put(column, cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            values.put(column, cursor.getString(i));
+                            break;
+                        default:
+                            values.putNull(column);
+                            break;
+                    }
+                }
+                // Never replace rows, deleting a mirror row deletes its update too
+                if (to.insertWithOnConflict(table, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE) == -1) {
+                    String[] selectionArgs = {values.getAsString(keyColumn)};
+                    to.update(table, values, keyColumn + " = ?", selectionArgs);
+                }
+            }
+        } catch (SQLiteException e) {
+            // Older versions of the database don't have all the tables
+            Log.d(TAG, "Could not import table " + table, e);
+        }
     }
 
-    public void setUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID, downloadId);
-        db.insert(MirrorsEntry.TABLE_NAME, null, values);
+    private void loadMirrorSelections() {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        String[] columns = {
+                MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID,
+                MirrorsEntry.COLUMN_NAME_MIRROR,
+                MirrorsEntry.COLUMN_NAME_MIRROR_URL,
+        };
+        try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, columns, null, null,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                mSelections.put(cursor.getString(0),
+                        new MirrorSelection(cursor.getString(1), cursor.getString(2)));
+            }
+        }
     }
 
-    public Boolean isUpdateExists(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        boolean isExists = false;
-        String selection = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, null, selection, selectionArgs, null, null, null)) {
-            while (cursor.moveToNext()) {
-                int index = cursor.getColumnIndex(MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID);
-                String res = cursor.getString(index);
-                if (res.equals(downloadId)) {
-                    isExists = true;
-                    break;
+    private void execute(String what, Runnable write) {
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    write.run();
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Could not " + what, e);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not " + what, e);
+        }
+    }
+
+    private void updateString(String sql, String value, String downloadId) {
+        SQLiteStatement statement = mDbHelper.getStatement(sql);
+        synchronized (statement) {
+            if (value != null) {
+                statement.bindString(1, value);
+            } else {
+                statement.bindNull(1);
             }
+            statement.bindString(2, downloadId);
+            statement.executeUpdateDelete();
         }
-        return isExists;
     }
 
+    public void setUpdate(String downloadId) {
+        mSelections.putIfAbsent(downloadId, new MirrorSelection(null, null));
+        execute("add " + downloadId, () -> {
+            SQLiteStatement statement = mDbHelper.getStatement(SQL_ADD_UPDATE);
+            synchronized (statement) {
+                statement.bindString(1, downloadId);
+                statement.executeInsert();
+            }
+        });
+    }
+
+    public Boolean isUpdateExists(String downloadId) {
+        return mSelections.containsKey(downloadId);
+    }
+
+    /**
+     * Forget the mirror of the given update. The update itself is removed
+     * from the database too, it can't exist without its mirror row.
+     */
     public void delUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String selection = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        db.delete(MirrorsEntry.TABLE_NAME, selection, selectionArgs);
+        mSelections.remove(downloadId);
+        execute("delete " + downloadId, () -> {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            String selection = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+            String[] selectionArgs = {downloadId};
+            db.delete(MirrorsEntry.TABLE_NAME, selection, selectionArgs);
+        });
     }
 
     public void setMirrorUrl(String mirrorUrl, String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] args = {downloadId};
-        values.put(MirrorsEntry.COLUMN_NAME_MIRROR_URL, mirrorUrl);
-        db.update(MirrorsEntry.TABLE_NAME, values, download_id_column, args);
+        mSelections.computeIfPresent(downloadId,
+                (id, selection) -> new MirrorSelection(selection.mName, mirrorUrl));
+        execute("set the mirror url of " + downloadId,
+                () -> updateString(SQL_SET_MIRROR_URL, mirrorUrl, downloadId));
     }
 
     public String getMirrorUrl(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String res = "";
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] get_columns = {MirrorsEntry.COLUMN_NAME_MIRROR_URL};
-        String[] args = {downloadId};
-        try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, get_columns, download_id_column, args, null, null, null)) {
+        MirrorSelection selection = mSelections.get(downloadId);
+        return selection != null ? selection.mUrl : "";
+    }
+
+    public void setMirrorName(String mirrorName, String downloadId) {
+        mSelections.computeIfPresent(downloadId,
+                (id, selection) -> new MirrorSelection(mirrorName, selection.mUrl));
+        execute("set the mirror name of " + downloadId,
+                () -> updateString(SQL_SET_MIRROR_NAME, mirrorName, downloadId));
+    }
+
+    public String getMirrorName(String downloadId) {
+        MirrorSelection selection = mSelections.get(downloadId);
+        return selection != null ? selection.mName : "unknown";
+    }
+
+    public MirrorStats getMirrorStats(String host) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        String selection = MirrorStatsEntry.COLUMN_NAME_HOST + " = ?";
+        String[] selectionArgs = {host};
+        try (Cursor cursor = db.query(MirrorStatsEntry.TABLE_NAME, MIRROR_STATS_PROJECTION,
+                selection, selectionArgs, null, null, null)) {
+            if (cursor.moveToNext()) {
+                return readMirrorStats(cursor);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the statistics of the mirrors used or probed recently enough to be trusted
+     *
+     * @param ttl maximum age of the statistics in milliseconds
+     * @return the statistics keyed by host
+     */
+    public Map<String, MirrorStats> getFreshMirrorStats(long ttl) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Map<String, MirrorStats> stats = new HashMap<>();
+        String selection = MirrorStatsEntry.COLUMN_NAME_LAST_SEEN + " > ?";
+        String[] selectionArgs = {Long.toString(System.currentTimeMillis() - ttl)};
+        try (Cursor cursor = db.query(MirrorStatsEntry.TABLE_NAME, MIRROR_STATS_PROJECTION,
+                selection, selectionArgs, null, null, null)) {
             while (cursor.moveToNext()) {
-                int index = cursor.getColumnIndex(MirrorsEntry.COLUMN_NAME_MIRROR_URL);
-                res = cursor.getString(index);
+                MirrorStats mirrorStats = readMirrorStats(cursor);
+                stats.put(mirrorStats.getHost(), mirrorStats);
             }
         }
-        return res;
+        return stats;
     }
 
-    public void setMirrorName(String mirrorName, String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?" ;
-        String[] args = {downloadId};
-        values.put(MirrorsEntry.COLUMN_NAME_MIRROR, mirrorName);
-        db.update(MirrorsEntry.TABLE_NAME, values, download_id_column, args);
+    public synchronized MirrorStats recordLatency(String host, double latency) {
+        MirrorStats stats = getOrCreateMirrorStats(host);
+        stats.addLatencySample(latency, System.currentTimeMillis());
+        saveMirrorStats(stats);
+        return stats;
     }
 
-    public String getMirrorName(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String res = "unknown";
-        String download_id_column = MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] get_columns = {MirrorsEntry.COLUMN_NAME_MIRROR};
-        String[] args = {downloadId};
-        try (Cursor cursor = db.query(MirrorsEntry.TABLE_NAME, get_columns, download_id_column, args, null, null, null)) {
+    public void recordFirstByteTime(String host, double firstByteTime) {
+        final long now = System.currentTimeMillis();
+        execute("record the first byte time of " + host, () -> {
+            synchronized (this) {
+                MirrorStats stats = getOrCreateMirrorStats(host);
+                stats.addFirstByteSample(firstByteTime, now);
+                saveMirrorStats(stats);
+            }
+        });
+    }
+
+    public void recordThroughput(String host, long bytes, long duration) {
+        if (bytes <= 0 || duration <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        execute("record the throughput of " + host, () -> {
+            synchronized (this) {
+                MirrorStats stats = getOrCreateMirrorStats(host);
+                stats.addThroughputSample(bytes * 1000.0 / duration, now);
+                saveMirrorStats(stats);
+            }
+        });
+    }
+
+    public void recordFailure(String host) {
+        final long now = System.currentTimeMillis();
+        execute("record a failure of " + host, () -> {
+            synchronized (this) {
+                MirrorStats stats = getOrCreateMirrorStats(host);
+                stats.addFailure(now);
+                saveMirrorStats(stats);
+            }
+        });
+    }
+
+    private MirrorStats getOrCreateMirrorStats(String host) {
+        MirrorStats stats = getMirrorStats(host);
+        return stats != null ? stats : new MirrorStats(host);
+    }
+
+    private void saveMirrorStats(MirrorStats stats) {
+        SQLiteStatement statement = mDbHelper.getStatement(SQL_SAVE_MIRROR_STATS);
+        synchronized (statement) {
+            statement.bindString(1, stats.getHost());
+            statement.bindDouble(2, stats.getLatency());
+            statement.bindDouble(3, stats.getThroughput());
+            statement.bindLong(4, stats.getSuccesses());
+            statement.bindLong(5, stats.getFailures());
+            statement.bindLong(6, stats.getLastSeen());
+            statement.bindDouble(7, stats.getFirstByteTime());
+            statement.executeInsert();
+        }
+    }
+
+    // The cursor must use MIRROR_STATS_PROJECTION
+    private static MirrorStats readMirrorStats(Cursor cursor) {
+        MirrorStats stats = new MirrorStats(cursor.getString(0));
+        stats.setLatency(cursor.getDouble(1));
+        stats.setThroughput(cursor.getDouble(2));
+        stats.setSuccesses(cursor.getInt(3));
+        stats.setFailures(cursor.getInt(4));
+        stats.setLastSeen(cursor.getLong(5));
+        // Rows older than the column have no value for it
+        stats.setFirstByteTime(cursor.isNull(6) ? -1 : cursor.getDouble(6));
+        return stats;
+    }
+
+    /**
+     * Replace the known SourceForge mirrors
+     *
+     * @param mirrors the place of each mirror keyed by mirror id
+     */
+    public void setSourceForgeMirrors(Map<String, String> mirrors) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.delete(SourceForgeMirrorsEntry.TABLE_NAME, null, null);
+            for (Map.Entry<String, String> mirror : mirrors.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(SourceForgeMirrorsEntry.COLUMN_NAME_MIRROR_ID, mirror.getKey());
+                values.put(SourceForgeMirrorsEntry.COLUMN_NAME_PLACE, mirror.getValue());
+                values.put(SourceForgeMirrorsEntry.COLUMN_NAME_FETCHED, now);
+                db.insert(SourceForgeMirrorsEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the place of each known SourceForge mirror keyed by mirror id
+     */
+    public Map<String, String> getSourceForgeMirrors() {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Map<String, String> mirrors = new LinkedHashMap<>();
+        String[] columns = {
+                SourceForgeMirrorsEntry.COLUMN_NAME_MIRROR_ID,
+                SourceForgeMirrorsEntry.COLUMN_NAME_PLACE,
+        };
+        try (Cursor cursor = db.query(SourceForgeMirrorsEntry.TABLE_NAME, columns, null, null,
+                null, null, SourceForgeMirrorsEntry._ID)) {
             while (cursor.moveToNext()) {
-                int index = cursor.getColumnIndex(MirrorsEntry.COLUMN_NAME_MIRROR);
-                res = cursor.getString(index);
+                mirrors.put(cursor.getString(0), cursor.getString(1));
             }
         }
-        return res;
+        return mirrors;
+    }
+
+    /**
+     * @return when the SourceForge mirrors were last fetched, 0 if never
+     */
+    public long getSourceForgeMirrorsFetchTime() {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT MAX(" +
+                SourceForgeMirrorsEntry.COLUMN_NAME_FETCHED + ") FROM " +
+                SourceForgeMirrorsEntry.TABLE_NAME, null)) {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        }
     }
 }
@@ -16,18 +16,16 @@
 package org.lineageos.updater;
 
 import android.animation.ObjectAnimator;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.icu.text.DateFormat;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -41,7 +39,7 @@ import android.widget.TextView;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.widget.Toolbar;
 import androidx.cardview.widget.CardView;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -51,6 +49,9 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.json.JSONException;
+import org.lineageos.updater.controller.MirrorRegistry;
+import org.lineageos.updater.controller.SourceForgeMirrors;
+import org.lineageos.updater.controller.UpdateListener;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
 import org.lineageos.updater.download.DownloadClient;
@@ -62,7 +63,6 @@ import org.lineageos.updater.model.UpdateInfo;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -71,24 +71,25 @@ public class UpdatesActivity extends UpdatesListActivity {
 
     private static final String TAG = "UpdatesActivity";
     private UpdaterService mUpdaterService;
-    private BroadcastReceiver mBroadcastReceiver;
+    private UpdateListener mUpdateListener;
 
     private static UpdatesListAdapter mAdapter;
 
     private FloatingActionButton mRefreshIconButton;
     private ObjectAnimator mRefreshAnimation;
     private TextView mUpdateText;
+    private View mLoadingView;
+    private long mCreateTime;
 
     private CardView mNoUpdatesCardView;
     private TextView mCurrentBuildVersion;
     private TextView mCurrentBuildDate;
     private TextView mDeviceInfo;
 
-    private static Map<String, String> mirrors;
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_updates);
 
         RecyclerView recyclerView = (RecyclerView) findViewById(R.id.recycler_view);
@@ -103,24 +104,39 @@ public class UpdatesActivity extends UpdatesListActivity {
 
         mRefreshIconButton = findViewById(R.id.refresh);
         mUpdateText = findViewById(R.id.updates_message);
+        mLoadingView = findViewById(R.id.updates_loading);
+        mUpdateText.setText(R.string.updates_loading);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
+        mUpdateListener = new UpdateListener() {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    handleDownloadStatusChange(downloadId);
-                    mAdapter.notifyDataSetChanged();
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
-                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    mAdapter.notifyItemChanged(downloadId);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    mAdapter.removeItem(downloadId);
-                    downloadUpdatesList(false);
+            public void onUpdatesLoaded() {
+                // Otherwise the list is loaded once connected to the service
+                if (mUpdaterService != null && mLoadingView.getVisibility() == View.VISIBLE) {
+                    getUpdatesList();
                 }
             }
+
+            @Override
+            public void onUpdateStatusChanged(UpdateInfo update) {
+                handleDownloadStatusChange(update);
+                mAdapter.notifyDataSetChanged();
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateInfo update) {
+                mAdapter.notifyItemChanged(update.getDownloadId());
+            }
+
+            @Override
+            public void onInstallProgress(UpdateInfo update) {
+                mAdapter.notifyItemChanged(update.getDownloadId());
+            }
+
+            @Override
+            public void onUpdateRemoved(UpdateInfo update) {
+                mAdapter.removeItem(update.getDownloadId());
+                downloadUpdatesList(false);
+            }
         };
 
         mRefreshIconButton.setOnClickListener(v -> {
@@ -159,19 +175,12 @@ public class UpdatesActivity extends UpdatesListActivity {
         Intent intent = new Intent(this, UpdaterService.class);
         startService(intent);
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
-
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
     }
 
     @Override
     public void onStop() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
         if (mUpdaterService != null) {
+            mUpdaterService.getUpdaterController().removeUpdateListener(mUpdateListener);
             unbindService(mConnection);
         }
         super.onStop();
@@ -217,12 +226,19 @@ public class UpdatesActivity extends UpdatesListActivity {
                 IBinder service) {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
-            mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
-            getUpdatesList();
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            mAdapter.setUpdaterController(controller);
+            controller.addUpdateListener(mUpdateListener,
+                    ContextCompat.getMainExecutor(UpdatesActivity.this));
+            // Keep showing the skeleton until the stored updates are loaded
+            if (controller.isLoaded()) {
+                getUpdatesList();
+            }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mUpdaterService.getUpdaterController().removeUpdateListener(mUpdateListener);
             mAdapter.setUpdaterController(null);
             mUpdaterService = null;
             mAdapter.notifyDataSetChanged();
@@ -267,6 +283,12 @@ public class UpdatesActivity extends UpdatesListActivity {
     }
 
     private void getUpdatesList() {
+        if (mLoadingView.getVisibility() == View.VISIBLE) {
+            mLoadingView.setVisibility(View.GONE);
+            mUpdateText.setText(R.string.snack_no_updates_found);
+            Log.d(TAG, "Updates shown " + (SystemClock.elapsedRealtime() - mCreateTime) +
+                    " ms after the activity was created");
+        }
         File jsonFile = Utils.getCachedUpdateList(this);
         if (jsonFile.exists()) {
             try {
@@ -359,8 +381,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         downloadClient.start();
     }
 
-    private void handleDownloadStatusChange(String downloadId) {
-        UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
+    private void handleDownloadStatusChange(UpdateInfo update) {
         switch (update.getStatus()) {
             case PAUSED_ERROR:
                 showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
@@ -436,47 +457,54 @@ public class UpdatesActivity extends UpdatesListActivity {
     }
 
     public static void prepareMirrorsData (UpdateInfo updateInfo, UpdatesActivity mUpdatesActivity) {
+        // The cached SourceForge mirrors are read from the database in background
+        boolean loading = SourceForgeMirrors.getInstance(mUpdatesActivity).loadAsync(() ->
+                mUpdatesActivity.runOnUiThread(() -> {
+                    if (!mUpdatesActivity.isFinishing()) {
+                        showMirrors(updateInfo, mUpdatesActivity);
+                    }
+                }));
+        if (!loading) {
+            mUpdatesActivity.showSnackbar(R.string.snack_failed_mirrors, Snackbar.LENGTH_LONG);
+        }
+    }
 
-        new AsyncTask<UpdateInfo, Void, Map<String, String>>() {
-            @Override
-            protected void onPreExecute() {
-                super.onPreExecute();
-
-                if (Utils.getRankSortSetting(mUpdatesActivity))
-                    mUpdatesActivity.showSnackbar(R.string.snack_ranking_mirrors, Snackbar.LENGTH_INDEFINITE);
-                else
-                    mUpdatesActivity.showSnackbar(R.string.snack_fetching_mirrors, Snackbar.LENGTH_INDEFINITE);
-            }
-
-            @Override
-            protected Map<String, String> doInBackground(UpdateInfo... update) {
-
-                Boolean rankSort = Utils.getRankSortSetting(mUpdatesActivity);
-                mirrors = new LinkedHashMap<>();
-
-                try {
-                    Thread mirrorsData = new Thread(() -> mirrors = UpdaterController.arrowMirrors(update[0], rankSort));
-                    mirrorsData.start();
-                    mirrorsData.join();
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "Mirrors data thread interrupted");
-                }
-
-                return mirrors;
-            }
+    private static void showMirrors(UpdateInfo updateInfo, UpdatesActivity mUpdatesActivity) {
+        Boolean rankSort = Utils.getRankSortSetting(mUpdatesActivity);
+        MirrorRegistry registry = MirrorRegistry.getInstance(mUpdatesActivity);
 
-            @Override
-            protected void onPostExecute(Map<String, String> mirrors) {
-                super.onPostExecute(mirrors);
-
-                if (!mirrors.isEmpty()) {
-                    mUpdatesActivity.showSnackbar(R.string.snack_fetched_mirrors, Snackbar.LENGTH_SHORT);
-                    showMirrorsDialog(mirrors, mUpdatesActivity, updateInfo);
-                } else {
-                    mUpdatesActivity.showSnackbar(R.string.snack_failed_mirrors, Snackbar.LENGTH_LONG);
-                }
+        // Show what we have right away, the ranking is refreshed in background
+        Map<String, String> mirrors = UpdaterController.arrowMirrors(
+                mUpdatesActivity, updateInfo, rankSort);
+        if (mirrors.isEmpty()) {
+            mUpdatesActivity.showSnackbar(R.string.snack_failed_mirrors, Snackbar.LENGTH_LONG);
+            return;
+        }
+        showMirrorsDialog(mirrors, mUpdatesActivity, updateInfo);
+
+        // New SourceForge mirrors show up the next time the dialog is opened
+        UpdaterController.refreshSourceForgeMirrors(mUpdatesActivity, updateInfo, () ->
+                mUpdatesActivity.runOnUiThread(() -> {
+                    if (!mUpdatesActivity.isFinishing()) {
+                        mUpdatesActivity.showSnackbar(R.string.snack_fetched_mirrors,
+                                Snackbar.LENGTH_SHORT);
+                    }
+                }));
+
+        if (rankSort) {
+            boolean ranked = registry.isRanked(updateInfo.getDownloadId());
+            boolean refreshing = registry.rankAsync(updateInfo.getDownloadId(), () ->
+                    mUpdatesActivity.runOnUiThread(() -> {
+                        if (!ranked && !mUpdatesActivity.isFinishing()) {
+                            mUpdatesActivity.showSnackbar(R.string.snack_fetched_mirrors,
+                                    Snackbar.LENGTH_SHORT);
+                        }
+                    }));
+            if (refreshing && !ranked) {
+                mUpdatesActivity.showSnackbar(R.string.snack_ranking_mirrors,
+                        Snackbar.LENGTH_INDEFINITE);
             }
-        }.execute(updateInfo);
+        }
     }
 
     private static void showMirrorsDialog(Map<String, String> mirrorsList, UpdatesActivity mUpdatesActivity, UpdateInfo updateInfo) {
@@ -503,10 +531,11 @@ public class UpdatesActivity extends UpdatesListActivity {
         }
 
         if (isRankSort) {
-            int mirrorName =0;
-            for (Map.Entry<Double, String> pingVals : UpdaterController.sorted_ranked_mirrors.entrySet()) {
-                mirrors_pings[mirrorName] = mirrors[mirrorName] + "  (" + pingVals.getKey() + ")";
-                mirrorName++;
+            MirrorRegistry registry = MirrorRegistry.getInstance(mUpdatesActivity);
+            for (int i = 0; i < mirrors.length; i++) {
+                MirrorRegistry.Mirror mirror = registry.getMirror(downloadId, mirrors[i]);
+                mirrors_pings[i] = mirror != null && mirror.isRanked() ?
+                        mirrors[i] + "  (" + mirror.getScore() + ")" : mirrors[i];
             }
         }
 
@@ -527,15 +556,18 @@ public class UpdatesActivity extends UpdatesListActivity {
     private void showMirrorPreferencesDialog () {
         View view = LayoutInflater.from(this).inflate(R.layout.sf_mirror_preferences, null);
         Switch rank_sort = view.findViewById(R.id.rank_and_sort_mirrors);
+        Switch race_mirrors = view.findViewById(R.id.race_mirrors);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         rank_sort.setChecked(prefs.getBoolean(Constants.PREF_RANK_SORT, false));
+        race_mirrors.setChecked(prefs.getBoolean(Constants.PREF_RACE_MIRRORS, false));
 
         new AlertDialog.Builder(this)
                 .setTitle(R.string.sf_mirror_preferences)
                 .setView(view)
                 .setOnDismissListener(dialogInterface -> prefs.edit()
                         .putBoolean(Constants.PREF_RANK_SORT, rank_sort.isChecked())
+                        .putBoolean(Constants.PREF_RACE_MIRRORS, race_mirrors.isChecked())
                         .apply())
                 .show();
     }
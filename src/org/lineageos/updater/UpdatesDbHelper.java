@@ -20,17 +20,39 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
+import android.util.Log;
 
+import org.lineageos.updater.MirrorsDbHelper.MirrorsEntry;
+import org.lineageos.updater.model.InstallManifest;
 import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateStatus;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Database of the updates. It also holds the mirror tables, see
+ * {@link MirrorsDbHelper}: each update row references the row with the
+ * mirror chosen for it and goes away with it.
+ */
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    private static final String TAG = "UpdatesDbHelper";
+
+    private static UpdatesDbHelper sInstance;
+
+    public static final int DATABASE_VERSION = 6;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,6 +64,11 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        // Install manifest, all null until the package is verified
+        public static final String COLUMN_NAME_AB_UPDATE = "ab_update";
+        public static final String COLUMN_NAME_PAYLOAD_OFFSET = "payload_offset";
+        public static final String COLUMN_NAME_PAYLOAD_SIZE = "payload_size";
+        public static final String COLUMN_NAME_PAYLOAD_PROPERTIES = "payload_properties";
     }
 
     private static final String SQL_CREATE_ENTRIES =
@@ -49,47 +76,245 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry._ID + " INTEGER PRIMARY KEY," +
                     UpdateEntry.COLUMN_NAME_STATUS + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_PATH + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE REFERENCES " +
+                    MirrorsEntry.TABLE_NAME + "(" + MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID +
+                    ") ON DELETE CASCADE," +
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_AB_UPDATE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES + " TEXT)";
+
+    private static final String SQL_CHANGE_STATUS =
+            "UPDATE " + UpdateEntry.TABLE_NAME + " SET " + UpdateEntry.COLUMN_NAME_STATUS +
+                    " = ? WHERE " + UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+
+    private static final String SQL_REMOVE_UPDATE =
+            "DELETE FROM " + UpdateEntry.TABLE_NAME + " WHERE " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
 
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
+    private static final String UPDATES_WITH_MIRRORS =
+            UpdateEntry.TABLE_NAME + " LEFT JOIN " + MirrorsEntry.TABLE_NAME + " USING (" +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + ")";
 
-    public UpdatesDbHelper(Context context) {
+    // Order of the columns read by getUpdates(), the indices below follow it
+    private static final String[] UPDATE_PROJECTION = {
+            UpdateEntry.COLUMN_NAME_PATH,
+            UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
+            UpdateEntry.COLUMN_NAME_TIMESTAMP,
+            UpdateEntry.COLUMN_NAME_TYPE,
+            UpdateEntry.COLUMN_NAME_VERSION,
+            UpdateEntry.COLUMN_NAME_STATUS,
+            UpdateEntry.COLUMN_NAME_SIZE,
+            MirrorsEntry.COLUMN_NAME_MIRROR_URL,
+            UpdateEntry.COLUMN_NAME_AB_UPDATE,
+            UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET,
+            UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE,
+            UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+    };
+    private static final int INDEX_PATH = 0;
+    private static final int INDEX_DOWNLOAD_ID = 1;
+    private static final int INDEX_TIMESTAMP = 2;
+    private static final int INDEX_TYPE = 3;
+    private static final int INDEX_VERSION = 4;
+    private static final int INDEX_STATUS = 5;
+    private static final int INDEX_SIZE = 6;
+    private static final int INDEX_MIRROR_URL = 7;
+    private static final int INDEX_AB_UPDATE = 8;
+    private static final int INDEX_PAYLOAD_OFFSET = 9;
+    private static final int INDEX_PAYLOAD_SIZE = 10;
+    private static final int INDEX_PAYLOAD_PROPERTIES = 11;
+
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    public static synchronized UpdatesDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdatesDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Let the list be read while a batch of status changes is committed
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // Not in onConfigure(): migrations rebuild tables and must not cascade
+        db.setForeignKeyConstraintsEnabled(true);
     }
 
     public void onCreate(SQLiteDatabase db) {
+        MirrorsDbHelper.onCreate(db);
         db.execSQL(SQL_CREATE_ENTRIES);
+        DownloadSessionsDbHelper.onCreate(db);
+        VerifiedFilesDbHelper.onCreate(db);
+    }
+
+    private interface Migration {
+        void migrate(SQLiteDatabase db);
     }
 
+    // MIGRATIONS[i] brings the database from version i + 1 to version i + 2.
+    // Migrations change the schema in place, they never drop user data. A
+    // table rebuilt by a migration gets the latest schema, so the following
+    // migrations must not fail on columns that already exist.
+    private static final Migration[] MIGRATIONS = {
+            UpdatesDbHelper::migrateToVersion2,
+            UpdatesDbHelper::migrateToVersion3,
+            UpdatesDbHelper::migrateToVersion4,
+            UpdatesDbHelper::migrateToVersion5,
+            UpdatesDbHelper::migrateToVersion6,
+    };
+
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        for (int version = oldVersion; version < newVersion; version++) {
+            Log.d(TAG, "Migrating from version " + version + " to " + (version + 1));
+            MIGRATIONS[version - 1].migrate(db);
+        }
     }
 
+    private static void migrateToVersion2(SQLiteDatabase db) {
+        // The mirror tables join this database and the updates reference them
+        MirrorsDbHelper.onCreate(db);
+        db.execSQL("INSERT INTO " + MirrorsEntry.TABLE_NAME + " (" +
+                MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID + ") SELECT " +
+                UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " FROM " + UpdateEntry.TABLE_NAME);
+        rebuildTable(db, UpdateEntry.TABLE_NAME, SQL_CREATE_ENTRIES, null);
+    }
+
+    private static void migrateToVersion3(SQLiteDatabase db) {
+        // Download sessions are recorded from now on
+        DownloadSessionsDbHelper.onCreate(db);
+    }
+
+    private static void migrateToVersion4(SQLiteDatabase db) {
+        // The packages verified before have no row and get verified again
+        VerifiedFilesDbHelper.onCreate(db);
+    }
+
+    private static void migrateToVersion5(SQLiteDatabase db) {
+        // The install manifest is stored with the update. The packages verified
+        // before have none and are read when installed
+        addColumn(db, UpdateEntry.TABLE_NAME, UpdateEntry.COLUMN_NAME_AB_UPDATE, "INTEGER");
+        addColumn(db, UpdateEntry.TABLE_NAME, UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET, "INTEGER");
+        addColumn(db, UpdateEntry.TABLE_NAME, UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE, "INTEGER");
+        addColumn(db, UpdateEntry.TABLE_NAME, UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+                "TEXT");
+    }
+
+    private static void migrateToVersion6(SQLiteDatabase db) {
+        // The time to first byte of the downloads is no longer averaged with
+        // the ping round trip time. The latencies recorded so far mix both, so
+        // forget them and let the mirrors be probed again
+        addColumn(db, MirrorsDbHelper.MirrorStatsEntry.TABLE_NAME,
+                MirrorsDbHelper.MirrorStatsEntry.COLUMN_NAME_FIRST_BYTE_TIME, "REAL");
+        db.execSQL("UPDATE " + MirrorsDbHelper.MirrorStatsEntry.TABLE_NAME + " SET " +
+                MirrorsDbHelper.MirrorStatsEntry.COLUMN_NAME_LATENCY + " = -1, " +
+                MirrorsDbHelper.MirrorStatsEntry.COLUMN_NAME_LAST_SEEN + " = 0");
+    }
+
+    /**
+     * Add the given column, unless an earlier migration rebuilt the table with
+     * the latest schema and it's already there.
+     */
+    private static void addColumn(SQLiteDatabase db, String table, String column,
+            String type) {
+        if (!getColumns(db, table).contains(column)) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        }
+    }
+
+    /**
+     * The newer version may have changed the schema in any way, so rebuild
+     * the tables known to this version from the columns both have. Downloads
+     * in progress and verified ones survive, like they do when upgrading.
+     */
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        Log.d(TAG, "Downgrading from version " + oldVersion + " to " + newVersion);
+        rebuildTable(db, MirrorsEntry.TABLE_NAME, MirrorsDbHelper.SQL_CREATE_ENTRIES, null);
+        rebuildTable(db, MirrorsDbHelper.MirrorStatsEntry.TABLE_NAME,
+                MirrorsDbHelper.SQL_CREATE_STATS_ENTRIES, null);
+        rebuildTable(db, MirrorsDbHelper.SourceForgeMirrorsEntry.TABLE_NAME,
+                MirrorsDbHelper.SQL_CREATE_SF_ENTRIES, null);
+        rebuildTable(db, UpdateEntry.TABLE_NAME, SQL_CREATE_ENTRIES,
+                UpdateEntry.COLUMN_NAME_STATUS + " IN (" + UpdateStatus.Persistent.INCOMPLETE +
+                        "," + UpdateStatus.Persistent.VERIFIED + ")");
+        rebuildTable(db, DownloadSessionsDbHelper.DownloadSessionEntry.TABLE_NAME,
+                DownloadSessionsDbHelper.SQL_CREATE_ENTRIES, null);
+        db.execSQL(DownloadSessionsDbHelper.SQL_CREATE_INDEX);
+        rebuildTable(db, VerifiedFilesDbHelper.VerifiedFileEntry.TABLE_NAME,
+                VerifiedFilesDbHelper.SQL_CREATE_ENTRIES, null);
+    }
+
+    /**
+     * Recreate the given table with the given schema, copying the columns that
+     * exist in both the current and the new schema. The new table is built
+     * aside and renamed, so that the references to the table stay valid.
+     *
+     * @param createSql statement creating the table with its final name
+     * @param selection rows to keep, null to keep them all
+     */
+    private static void rebuildTable(SQLiteDatabase db, String table, String createSql,
+            String selection) {
+        String prefix = "CREATE TABLE " + table + " ";
+        if (!createSql.startsWith(prefix)) {
+            throw new IllegalArgumentException("Unexpected schema of " + table);
+        }
+        String newTable = table + "_new";
+        db.execSQL("DROP TABLE IF EXISTS " + newTable);
+        db.execSQL("CREATE TABLE " + newTable + " " + createSql.substring(prefix.length()));
+
+        Set<String> columns = getColumns(db, table);
+        columns.retainAll(getColumns(db, newTable));
+        if (!columns.isEmpty()) {
+            String columnList = String.join(",", columns);
+            db.execSQL("INSERT INTO " + newTable + " (" + columnList + ") SELECT " +
+                    columnList + " FROM " + table +
+                    (selection != null ? " WHERE " + selection : ""));
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + table);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + table);
+    }
+
+    private static Set<String> getColumns(SQLiteDatabase db, String table) {
+        Set<String> columns = new LinkedHashSet<>();
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int index = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(index));
+            }
+        }
+        return columns;
     }
 
     public long addUpdate(Update update) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        fillContentValues(update, values);
-        return db.insert(UpdateEntry.TABLE_NAME, null, values);
+        return addUpdateWithOnConflict(update, SQLiteDatabase.CONFLICT_NONE);
     }
 
     public long addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
-        SQLiteDatabase db = getWritableDatabase();
         ContentValues values = new ContentValues();
         fillContentValues(update, values);
+        return addUpdate(values, conflictAlgorithm);
+    }
+
+    long addUpdate(ContentValues values, int conflictAlgorithm) {
+        SQLiteDatabase db = getWritableDatabase();
+        // The mirror row has to exist before the update can reference it
+        SQLiteStatement statement = getStatement(MirrorsDbHelper.SQL_ADD_UPDATE);
+        synchronized (statement) {
+            statement.bindString(1, values.getAsString(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID));
+            statement.executeInsert();
+        }
         return db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
     }
 
-    private static void fillContentValues(Update update, ContentValues values) {
+    static void fillContentValues(Update update, ContentValues values) {
         values.put(UpdateEntry.COLUMN_NAME_STATUS, update.getPersistentStatus());
         values.put(UpdateEntry.COLUMN_NAME_PATH, update.getFile().getAbsolutePath());
         values.put(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID, update.getDownloadId());
@@ -97,13 +322,42 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        InstallManifest manifest = update.getInstallManifest();
+        if (manifest != null) {
+            values.put(UpdateEntry.COLUMN_NAME_AB_UPDATE, manifest.isABUpdate() ? 1 : 0);
+            values.put(UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET, manifest.getPayloadOffset());
+            values.put(UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE, manifest.getPayloadSize());
+            values.put(UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+                    String.join("\n", manifest.getPayloadProperties()));
+        } else {
+            values.putNull(UpdateEntry.COLUMN_NAME_AB_UPDATE);
+            values.putNull(UpdateEntry.COLUMN_NAME_PAYLOAD_OFFSET);
+            values.putNull(UpdateEntry.COLUMN_NAME_PAYLOAD_SIZE);
+            values.putNull(UpdateEntry.COLUMN_NAME_PAYLOAD_PROPERTIES);
+        }
+    }
+
+    /**
+     * Get the compiled form of the given statement, compiling it only the first
+     * time. The statement has to be locked while being bound and executed.
+     */
+    SQLiteStatement getStatement(String sql) {
+        synchronized (mStatements) {
+            SQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = getWritableDatabase().compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            return statement;
+        }
     }
 
     public boolean removeUpdate(String downloadId) {
-        SQLiteDatabase db = getWritableDatabase();
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {downloadId};
-        return db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs) != 0;
+        SQLiteStatement statement = getStatement(SQL_REMOVE_UPDATE);
+        synchronized (statement) {
+            statement.bindString(1, downloadId);
+            return statement.executeUpdateDelete() != 0;
+        }
     }
 
     public boolean removeUpdate(long rowId) {
@@ -113,9 +367,16 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
     }
 
     public boolean changeUpdateStatus(Update update) {
-        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
-        String[] selectionArgs = {update.getDownloadId()};
-        return changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
+        return changeUpdateStatus(update.getDownloadId(), update.getPersistentStatus());
+    }
+
+    public boolean changeUpdateStatus(String downloadId, int status) {
+        SQLiteStatement statement = getStatement(SQL_CHANGE_STATUS);
+        synchronized (statement) {
+            statement.bindLong(1, status);
+            statement.bindString(2, downloadId);
+            return statement.executeUpdateDelete() != 0;
+        }
     }
 
     public boolean changeUpdateStatus(long rowId, int status) {
@@ -132,7 +393,7 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
     }
 
     public Update getUpdate(long rowId) {
-        String selection = UpdateEntry._ID + " = " + rowId;
+        String selection = UpdateEntry.TABLE_NAME + "." + UpdateEntry._ID + " = " + rowId;
         return getUpdate(selection, null);
     }
 
@@ -147,47 +408,54 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         return updates != null ? updates.get(0) : null;
     }
 
+    private static InstallManifest readInstallManifest(Cursor cursor) {
+        if (cursor.isNull(INDEX_AB_UPDATE)) {
+            return null;
+        }
+        if (cursor.getInt(INDEX_AB_UPDATE) == 0) {
+            return InstallManifest.forNonABUpdate();
+        }
+        String properties = cursor.getString(INDEX_PAYLOAD_PROPERTIES);
+        return InstallManifest.forABUpdate(cursor.getLong(INDEX_PAYLOAD_OFFSET),
+                cursor.getLong(INDEX_PAYLOAD_SIZE), properties == null || properties.isEmpty() ?
+                        Collections.emptyList() : Arrays.asList(properties.split("\n")));
+    }
+
     public List<Update> getUpdates() {
         return getUpdates(null, null);
     }
 
     public List<Update> getUpdates(String selection, String[] selectionArgs) {
+        long start = SystemClock.elapsedRealtime();
         SQLiteDatabase db = getReadableDatabase();
-        String[] projection = {
-                UpdateEntry.COLUMN_NAME_PATH,
-                UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
-                UpdateEntry.COLUMN_NAME_TIMESTAMP,
-                UpdateEntry.COLUMN_NAME_TYPE,
-                UpdateEntry.COLUMN_NAME_VERSION,
-                UpdateEntry.COLUMN_NAME_STATUS,
-                UpdateEntry.COLUMN_NAME_SIZE,
-        };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
-        Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
+        // The mirror of each update comes with it
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(UPDATES_WITH_MIRRORS);
+        Cursor cursor = queryBuilder.query(db, UPDATE_PROJECTION, selection, selectionArgs,
                 null, null, sort);
         List<Update> updates = new ArrayList<>();
         if (cursor != null) {
             while (cursor.moveToNext()) {
                 Update update = new Update();
-                int index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PATH);
-                update.setFile(new File(cursor.getString(index)));
+                update.setFile(new File(cursor.getString(INDEX_PATH)));
                 update.setName(update.getFile().getName());
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID);
-                update.setDownloadId(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_TIMESTAMP);
-                update.setTimestamp(cursor.getLong(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_TYPE);
-                update.setType(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_VERSION);
-                update.setVersion(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_STATUS);
-                update.setPersistentStatus(cursor.getInt(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
-                update.setFileSize(cursor.getLong(index));
+                update.setDownloadId(cursor.getString(INDEX_DOWNLOAD_ID));
+                update.setTimestamp(cursor.getLong(INDEX_TIMESTAMP));
+                update.setType(cursor.getString(INDEX_TYPE));
+                update.setVersion(cursor.getString(INDEX_VERSION));
+                update.setPersistentStatus(cursor.getInt(INDEX_STATUS));
+                update.setFileSize(cursor.getLong(INDEX_SIZE));
+                if (!cursor.isNull(INDEX_MIRROR_URL)) {
+                    update.setDownloadUrl(cursor.getString(INDEX_MIRROR_URL));
+                }
+                update.setInstallManifest(readInstallManifest(cursor));
                 updates.add(update);
             }
             cursor.close();
         }
+        Log.d(TAG, "Loaded " + updates.size() + " updates in " +
+                (SystemClock.elapsedRealtime() - start) + " ms");
         return updates;
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.updater.UpdatesDbHelper.UpdateEntry;
+import org.lineageos.updater.misc.BackgroundExecutors;
+import org.lineageos.updater.model.Update;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Write-behind front end of {@link UpdatesDbHelper}. Writes are queued and
+ * committed by a single thread in batches, each batch in one transaction.
+ * Only the last write of each update is kept while it waits in the queue, so
+ * a burst of status changes costs a single row update.
+ */
+public class UpdatesDbWriter {
+
+    private static final String TAG = "UpdatesDbWriter";
+
+    // How long writes are held back to be batched with the following ones
+    private static final long BATCH_DELAY_MS = 200;
+
+    private static final int OP_ADD = 0;
+    private static final int OP_CHANGE_STATUS = 1;
+    private static final int OP_REMOVE = 2;
+
+    private final UpdatesDbHelper mDbHelper;
+    // Single thread, the batches are committed in order
+    private final ExecutorService mExecutor =
+            BackgroundExecutors.get(BackgroundExecutors.Pool.DB);
+    private final Map<String, PendingWrite> mPendingWrites = new LinkedHashMap<>();
+    private int mCoalescedWrites;
+
+    private static class PendingWrite {
+        private final int mOp;
+        private final ContentValues mValues;
+
+        private PendingWrite(int op, ContentValues values) {
+            mOp = op;
+            mValues = values;
+        }
+    }
+
+    public UpdatesDbWriter(UpdatesDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Insert the update, replacing any existing row with the same download ID.
+     * The values are captured now, later changes of the update aren't written.
+     */
+    public void addUpdate(Update update) {
+        ContentValues values = new ContentValues();
+        UpdatesDbHelper.fillContentValues(update, values);
+        enqueue(update.getDownloadId(), new PendingWrite(OP_ADD, values));
+    }
+
+    public void changeUpdateStatus(Update update) {
+        String downloadId = update.getDownloadId();
+        synchronized (mPendingWrites) {
+            PendingWrite pending = mPendingWrites.get(downloadId);
+            if (pending != null && pending.mOp != OP_CHANGE_STATUS) {
+                // Fold the status into the queued row, a removed row stays removed
+                if (pending.mOp == OP_ADD) {
+                    pending.mValues.put(UpdateEntry.COLUMN_NAME_STATUS,
+                            update.getPersistentStatus());
+                }
+                mCoalescedWrites++;
+                return;
+            }
+            ContentValues values = new ContentValues();
+            values.put(UpdateEntry.COLUMN_NAME_STATUS, update.getPersistentStatus());
+            enqueue(downloadId, new PendingWrite(OP_CHANGE_STATUS, values));
+        }
+    }
+
+    public void removeUpdate(String downloadId) {
+        enqueue(downloadId, new PendingWrite(OP_REMOVE, null));
+    }
+
+    private void enqueue(String downloadId, PendingWrite write) {
+        synchronized (mPendingWrites) {
+            boolean schedule = mPendingWrites.isEmpty();
+            // Re-insert so that the batch keeps the order of the last writes
+            if (mPendingWrites.remove(downloadId) != null) {
+                mCoalescedWrites++;
+            }
+            mPendingWrites.put(downloadId, write);
+            if (schedule) {
+                try {
+                    BackgroundExecutors.schedule(mExecutor, this::commitPending,
+                            BATCH_DELAY_MS);
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "Could not schedule the write of " + downloadId, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit the writes queued so far without waiting for the batch delay.
+     * Meant for the moments the database has to be up to date, like before
+     * installing.
+     *
+     * @param callback run on the writer thread once the writes are committed,
+     *        or failed to be. Can be null
+     */
+    public void flush(Runnable callback) {
+        try {
+            mExecutor.execute(() -> {
+                commitPending();
+                if (callback != null) {
+                    callback.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not flush the pending writes", e);
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    private void commitPending() {
+        Map<String, PendingWrite> writes;
+        int coalesced;
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            writes = new LinkedHashMap<>(mPendingWrites);
+            mPendingWrites.clear();
+            coalesced = mCoalescedWrites;
+            mCoalescedWrites = 0;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            commit(writes);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Could not commit " + writes.size() + " writes, retrying one by one", e);
+            commitEach(writes);
+            return;
+        }
+        Log.d(TAG, "Committed " + writes.size() + " writes (" + coalesced + " coalesced) in " +
+                (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Commit the writes of a failed batch separately, so that a single bad row
+     * doesn't lose the writes of the other updates.
+     */
+    private void commitEach(Map<String, PendingWrite> writes) {
+        int failed = 0;
+        for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+            try {
+                commit(Collections.singletonMap(entry.getKey(), entry.getValue()));
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Could not commit the write of " + entry.getKey(), e);
+                failed++;
+            }
+        }
+        Log.d(TAG, "Committed " + (writes.size() - failed) + " of " + writes.size() +
+                " writes one by one");
+    }
+
+    private void commit(Map<String, PendingWrite> writes) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+                PendingWrite write = entry.getValue();
+                switch (write.mOp) {
+                    case OP_ADD:
+                        mDbHelper.addUpdate(write.mValues, SQLiteDatabase.CONFLICT_REPLACE);
+                        break;
+                    case OP_CHANGE_STATUS:
+                        mDbHelper.changeUpdateStatus(entry.getKey(),
+                                write.mValues.getAsInteger(UpdateEntry.COLUMN_NAME_STATUS));
+                        break;
+                    case OP_REMOVE:
+                        mDbHelper.removeUpdate(entry.getKey());
+                        break;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import org.lineageos.updater.MirrorsDbHelper.MirrorsEntry;
+import org.lineageos.updater.model.FileIdentity;
+import org.lineageos.updater.model.VerifiedFile;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verified files table of {@link UpdatesDbHelper#DATABASE_NAME}. It remembers
+ * what each package looked like when it passed the verification, so that it
+ * can be trusted again without being verified again. The row of an update goes
+ * away with its mirror row.
+ */
+public class VerifiedFilesDbHelper {
+
+    private static VerifiedFilesDbHelper sInstance;
+
+    public static class VerifiedFileEntry implements BaseColumns {
+        public static final String TABLE_NAME = "verified_files";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_PATH = "path";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_MODIFIED = "modified";
+        public static final String COLUMN_NAME_INODE = "inode";
+        public static final String COLUMN_NAME_CHUNK_SIZE = "chunk_size";
+        public static final String COLUMN_NAME_DIGEST = "digest";
+    }
+
+    static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE " + VerifiedFileEntry.TABLE_NAME + " (" +
+                    VerifiedFileEntry._ID + " INTEGER PRIMARY KEY," +
+                    VerifiedFileEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE REFERENCES " +
+                    MirrorsEntry.TABLE_NAME + "(" + MirrorsEntry.COLUMN_NAME_DOWNLOAD_ID +
+                    ") ON DELETE CASCADE," +
+                    VerifiedFileEntry.COLUMN_NAME_PATH + " TEXT NOT NULL," +
+                    VerifiedFileEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    VerifiedFileEntry.COLUMN_NAME_MODIFIED + " INTEGER," +
+                    VerifiedFileEntry.COLUMN_NAME_INODE + " INTEGER," +
+                    VerifiedFileEntry.COLUMN_NAME_CHUNK_SIZE + " INTEGER," +
+                    VerifiedFileEntry.COLUMN_NAME_DIGEST + " TEXT NOT NULL)";
+
+    private static final String[] PROJECTION = {
+            VerifiedFileEntry.COLUMN_NAME_DOWNLOAD_ID,
+            VerifiedFileEntry.COLUMN_NAME_PATH,
+            VerifiedFileEntry.COLUMN_NAME_SIZE,
+            VerifiedFileEntry.COLUMN_NAME_MODIFIED,
+            VerifiedFileEntry.COLUMN_NAME_INODE,
+            VerifiedFileEntry.COLUMN_NAME_CHUNK_SIZE,
+            VerifiedFileEntry.COLUMN_NAME_DIGEST,
+    };
+
+    private final UpdatesDbHelper mDbHelper;
+
+    public static synchronized VerifiedFilesDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new VerifiedFilesDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private VerifiedFilesDbHelper(Context context) {
+        mDbHelper = UpdatesDbHelper.getInstance(context);
+    }
+
+    static void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ENTRIES);
+    }
+
+    /**
+     * Remember the given file as verified, replacing what was known about
+     * the previous file of the update.
+     */
+    public void putVerifiedFile(String downloadId, VerifiedFile verifiedFile) {
+        ContentValues values = new ContentValues();
+        values.put(VerifiedFileEntry.COLUMN_NAME_DOWNLOAD_ID, downloadId);
+        values.put(VerifiedFileEntry.COLUMN_NAME_PATH, verifiedFile.getPath());
+        values.put(VerifiedFileEntry.COLUMN_NAME_SIZE, verifiedFile.getIdentity().getSize());
+        values.put(VerifiedFileEntry.COLUMN_NAME_MODIFIED,
+                verifiedFile.getIdentity().getModifiedNanos());
+        values.put(VerifiedFileEntry.COLUMN_NAME_INODE, verifiedFile.getIdentity().getInode());
+        values.put(VerifiedFileEntry.COLUMN_NAME_CHUNK_SIZE, verifiedFile.getChunkSize());
+        values.put(VerifiedFileEntry.COLUMN_NAME_DIGEST, verifiedFile.getDigest());
+        mDbHelper.getWritableDatabase().insertWithOnConflict(VerifiedFileEntry.TABLE_NAME, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @return the verified files, by download ID
+     */
+    public Map<String, VerifiedFile> getVerifiedFiles() {
+        Map<String, VerifiedFile> verifiedFiles = new HashMap<>();
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        try (Cursor cursor = db.query(VerifiedFileEntry.TABLE_NAME, PROJECTION, null, null,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                FileIdentity identity = new FileIdentity(cursor.getLong(2), cursor.getLong(3),
+                        cursor.getLong(4));
+                verifiedFiles.put(cursor.getString(0), new VerifiedFile(cursor.getString(1),
+                        identity, cursor.getInt(5), cursor.getString(6)));
+            }
+        }
+        return verifiedFiles;
+    }
+}
@@ -26,18 +26,12 @@ import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.Utils;
-import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.InstallManifest;
+import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 class ABUpdateInstaller {
 
@@ -62,7 +56,7 @@ class ABUpdateInstaller {
 
         @Override
         public void onStatusUpdate(int status, float percent) {
-            Update update = mUpdaterController.getActualUpdate(mDownloadId);
+            UpdateInfo update = mUpdaterController.getUpdate(mDownloadId);
             if (update == null) {
                 // We read the id from a preference, the update could no longer exist
                 installationDone(status == UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT);
@@ -73,23 +67,17 @@ class ABUpdateInstaller {
                 case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
                 case UpdateEngine.UpdateStatusConstants.FINALIZING: {
                     if (update.getStatus() != UpdateStatus.INSTALLING) {
-                        update.setStatus(UpdateStatus.INSTALLING);
-                        mUpdaterController.notifyUpdateChange(mDownloadId);
+                        mUpdaterController.setInstallStatus(mDownloadId, UpdateStatus.INSTALLING);
                     }
                     mProgress = Math.round(percent * 100);
-                    mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
                     mFinalizing = status == UpdateEngine.UpdateStatusConstants.FINALIZING;
-                    mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(mFinalizing);
-                    mUpdaterController.notifyInstallProgress(mDownloadId);
+                    mUpdaterController.setInstallProgress(mDownloadId, mProgress, mFinalizing);
                 }
                 break;
 
                 case UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT: {
                     installationDone(true);
-                    update.setInstallProgress(0);
-                    update.setStatus(UpdateStatus.INSTALLED);
-                    mUpdaterController.notifyUpdateChange(mDownloadId);
-                    mUpdaterController.notifyInstallFinished(mDownloadId);
+                    mUpdaterController.setInstallStatus(mDownloadId, UpdateStatus.INSTALLED);
                 }
                 break;
 
@@ -106,10 +94,8 @@ class ABUpdateInstaller {
         public void onPayloadApplicationComplete(int errorCode) {
             if (errorCode != UpdateEngine.ErrorCodeConstants.SUCCESS) {
                 installationDone(false);
-                Update update = mUpdaterController.getActualUpdate(mDownloadId);
-                update.setInstallProgress(0);
-                update.setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(mDownloadId);
+                mUpdaterController.setInstallStatus(mDownloadId,
+                        UpdateStatus.INSTALLATION_FAILED);
             }
         }
     };
@@ -164,37 +150,26 @@ class ABUpdateInstaller {
 
         mDownloadId = downloadId;
 
-        File file = mUpdaterController.getActualUpdate(mDownloadId).getFile();
+        UpdateInfo update = mUpdaterController.getUpdate(mDownloadId);
+        File file = update.getFile();
         if (!file.exists()) {
             Log.e(TAG, "The given update doesn't exist");
-            mUpdaterController.getActualUpdate(downloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
-            mUpdaterController.notifyUpdateChange(downloadId);
+            mUpdaterController.setInstallStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
             return false;
         }
 
-        long offset;
-        String[] headerKeyValuePairs;
+        // Read when the package was verified, unless verified by an older version
+        InstallManifest manifest = update.getInstallManifest();
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
+            if (manifest == null) {
+                manifest = Utils.readInstallManifest(file);
+            }
+            if (!manifest.isABUpdate()) {
+                throw new IOException("Not an A/B package");
             }
-            zipFile.close();
-        } catch (IOException | IllegalArgumentException e) {
+        } catch (IOException e) {
             Log.e(TAG, "Could not prepare " + file, e);
-            mUpdaterController.getActualUpdate(mDownloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
-            mUpdaterController.notifyUpdateChange(mDownloadId);
+            mUpdaterController.setInstallStatus(mDownloadId, UpdateStatus.INSTALLATION_FAILED);
             return false;
         }
 
@@ -202,9 +177,7 @@ class ABUpdateInstaller {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                mUpdaterController.setInstallStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
                 return false;
             }
         }
@@ -214,10 +187,11 @@ class ABUpdateInstaller {
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
         String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        mUpdateEngine.applyPayload(zipFileUri, manifest.getPayloadOffset(),
+                manifest.getPayloadSize(),
+                manifest.getPayloadProperties().toArray(new String[0]));
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
+        mUpdaterController.setInstallStatus(mDownloadId, UpdateStatus.INSTALLING);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .putString(PREF_INSTALLING_AB_ID, mDownloadId)
@@ -272,9 +246,7 @@ class ABUpdateInstaller {
         mUpdateEngine.cancel();
         installationDone(false);
 
-        mUpdaterController.getActualUpdate(mDownloadId)
-                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
+        mUpdaterController.setInstallStatus(mDownloadId, UpdateStatus.INSTALLATION_CANCELLED);
 
         return true;
     }
@@ -296,9 +268,7 @@ class ABUpdateInstaller {
 
         mUpdateEngine.suspend();
 
-        mUpdaterController.getActualUpdate(mDownloadId)
-                .setStatus(UpdateStatus.INSTALLATION_SUSPENDED);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
+        mUpdaterController.setInstallStatus(mDownloadId, UpdateStatus.INSTALLATION_SUSPENDED);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .putString(PREF_INSTALLING_SUSPENDED_AB_ID, mDownloadId)
@@ -320,11 +290,8 @@ class ABUpdateInstaller {
 
         mUpdateEngine.resume();
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
-        mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
-        mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(mFinalizing);
-        mUpdaterController.notifyInstallProgress(mDownloadId);
+        mUpdaterController.setInstallStatus(mDownloadId, UpdateStatus.INSTALLING);
+        mUpdaterController.setInstallProgress(mDownloadId, mProgress, mFinalizing);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .remove(PREF_INSTALLING_SUSPENDED_AB_ID)
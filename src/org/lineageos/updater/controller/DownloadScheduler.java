@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Decides which downloads run. At most a given number of downloads run at the
+ * same time, the others wait in a queue ordered by priority: the downloads
+ * requested by the user go first, then the newest builds. A waiting download
+ * requested by the user preempts a running background one when no slot is free.
+ * This class only keeps the bookkeeping, starting and stopping the downloads is
+ * left to the caller. Not thread safe, only used from the state thread of
+ * {@link UpdaterController}.
+ */
+class DownloadScheduler {
+
+    static final class Request {
+        private final String mDownloadId;
+        private final long mTimestamp;
+        private final boolean mUserInitiated;
+        private final boolean mResume;
+        // Order of arrival, used to keep the queue stable
+        private final long mSequence;
+
+        private Request(String downloadId, long timestamp, boolean userInitiated,
+                boolean resume, long sequence) {
+            mDownloadId = downloadId;
+            mTimestamp = timestamp;
+            mUserInitiated = userInitiated;
+            mResume = resume;
+            mSequence = sequence;
+        }
+
+        String getDownloadId() {
+            return mDownloadId;
+        }
+
+        boolean isUserInitiated() {
+            return mUserInitiated;
+        }
+
+        /**
+         * @return true if the download continues an existing file
+         */
+        boolean isResume() {
+            return mResume;
+        }
+    }
+
+    // Highest priority first
+    private static final Comparator<Request> PRIORITY_ORDER = (r1, r2) -> {
+        if (r1.mUserInitiated != r2.mUserInitiated) {
+            return r1.mUserInitiated ? -1 : 1;
+        }
+        int cmp = Long.compare(r2.mTimestamp, r1.mTimestamp);
+        return cmp != 0 ? cmp : Long.compare(r1.mSequence, r2.mSequence);
+    };
+
+    private final TreeSet<Request> mPending = new TreeSet<>(PRIORITY_ORDER);
+    private final Map<String, Request> mRunning = new HashMap<>();
+    private int mMaxConcurrent;
+    private long mSequence;
+
+    DownloadScheduler(int maxConcurrent) {
+        setMaxConcurrent(maxConcurrent);
+    }
+
+    /**
+     * Change the number of downloads allowed to run at the same time. Running
+     * downloads are never stopped because of a lower limit.
+     */
+    void setMaxConcurrent(int maxConcurrent) {
+        mMaxConcurrent = Math.max(maxConcurrent, 1);
+    }
+
+    int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    /**
+     * Queue a download. Nothing is done if it's already queued or running.
+     *
+     * @param timestamp the build date of the update, newer builds go first
+     * @param userInitiated whether the user asked for the download
+     * @param resume whether the download continues an existing file
+     * @return the queued request, null if nothing was queued
+     */
+    Request enqueue(String downloadId, long timestamp, boolean userInitiated, boolean resume) {
+        if (mRunning.containsKey(downloadId) || isQueued(downloadId)) {
+            return null;
+        }
+        Request request = new Request(downloadId, timestamp, userInitiated, resume,
+                mSequence++);
+        mPending.add(request);
+        return request;
+    }
+
+    /**
+     * Queue again a download stopped to make room for another one. It keeps
+     * its priority.
+     *
+     * @param resume whether the download continues an existing file
+     */
+    void requeue(Request request, boolean resume) {
+        mRunning.remove(request.mDownloadId);
+        mPending.add(new Request(request.mDownloadId, request.mTimestamp,
+                request.mUserInitiated, resume, mSequence++));
+    }
+
+    /**
+     * Take the next download to start if a slot is free. The download is
+     * considered running until {@link #finished(String)} is called.
+     *
+     * @return the download to start, null if none
+     */
+    Request poll() {
+        if (mRunning.size() >= mMaxConcurrent || mPending.isEmpty()) {
+            return null;
+        }
+        Request request = mPending.pollFirst();
+        mRunning.put(request.mDownloadId, request);
+        return request;
+    }
+
+    /**
+     * @return the running background download to stop so that the first
+     * waiting download can start, null if none should be stopped
+     */
+    Request getPreemptionVictim() {
+        if (mRunning.size() < mMaxConcurrent || mPending.isEmpty()) {
+            return null;
+        }
+        // Background downloads wait for a free slot
+        if (!mPending.first().mUserInitiated) {
+            return null;
+        }
+        Request victim = null;
+        for (Request running : mRunning.values()) {
+            // The downloads requested by the user are never stopped
+            if (running.mUserInitiated) {
+                continue;
+            }
+            if (victim == null || PRIORITY_ORDER.compare(running, victim) > 0) {
+                victim = running;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Free the slot of the given download, if it was running.
+     */
+    void finished(String downloadId) {
+        mRunning.remove(downloadId);
+    }
+
+    /**
+     * Remove the given download from the queue.
+     *
+     * @return the removed request, null if the download wasn't queued
+     */
+    Request cancel(String downloadId) {
+        for (Request request : mPending) {
+            if (request.mDownloadId.equals(downloadId)) {
+                mPending.remove(request);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    boolean isQueued(String downloadId) {
+        for (Request request : mPending) {
+            if (request.mDownloadId.equals(downloadId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the waiting downloads, in the order they will start
+     */
+    List<String> getQueue() {
+        List<String> queue = new ArrayList<>(mPending.size());
+        for (Request request : mPending) {
+            queue.add(request.mDownloadId);
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import org.lineageos.updater.MirrorsDbHelper;
+import org.lineageos.updater.misc.BackgroundExecutors;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.model.MirrorStats;
+import org.lineageos.updater.model.UpdateMirror;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the mirrors of each update and their ranking. Rankings are computed on
+ * a shared, bounded pool and published as immutable lists, so readers never
+ * need to lock and the rankings of different updates never interfere.
+ */
+public class MirrorRegistry {
+
+    private static final String TAG = "MirrorRegistry";
+
+    private static final int RANKING_QUEUE_SIZE = 16;
+    private static final long RANKING_TIMEOUT_MS = 30 * 1000;
+    // Five pings take about four seconds when the host answers
+    private static final long PROBE_TIMEOUT_MS = 8 * 1000;
+    // Lowest share of its weight a mirror keeps however bad its local history is
+    private static final double MIN_HEALTH = 0.1;
+
+    private static MirrorRegistry sInstance;
+
+    private final MirrorsDbHelper mMirrorsDbHelper;
+    private final ExecutorService mProbeExecutor =
+            BackgroundExecutors.get(BackgroundExecutors.Pool.PROBE);
+    // A ranking waits for its probes, rankings run one at a time apart from them
+    private final ExecutorService mRankingExecutor =
+            BackgroundExecutors.newSerialExecutor("ranking", RANKING_QUEUE_SIZE);
+    private final Map<String, List<Mirror>> mMirrors = new ConcurrentHashMap<>();
+    private final Map<String, Future<?>> mPendingRankings = new ConcurrentHashMap<>();
+    private final Random mRandom = new Random();
+
+    public static final class Mirror {
+        private final String mName;
+        private final String mUrl;
+        private final String mHost;
+        private final double mScore;
+
+        Mirror(String name, String url, double score) {
+            mName = name;
+            mUrl = url;
+            mHost = Uri.parse(url).getHost();
+            mScore = score;
+        }
+
+        private Mirror withScore(double score) {
+            return new Mirror(mName, mUrl, score);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        /**
+         * @return the ranking score, lower is better, or -1 if the mirror isn't ranked
+         */
+        public double getScore() {
+            return mScore;
+        }
+
+        public boolean isRanked() {
+            return mScore > 0;
+        }
+    }
+
+    // Ranked mirrors first, best score first, then by name so that the
+    // order is the same no matter in which order the probes completed
+    private static final Comparator<Mirror> RANKING_ORDER = (m1, m2) -> {
+        if (m1.isRanked() != m2.isRanked()) {
+            return m1.isRanked() ? -1 : 1;
+        }
+        int cmp = Double.compare(m1.getScore(), m2.getScore());
+        return cmp != 0 ? cmp : m1.getName().compareTo(m2.getName());
+    };
+
+    public static synchronized MirrorRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MirrorRegistry(MirrorsDbHelper.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private MirrorRegistry(MirrorsDbHelper mirrorsDbHelper) {
+        mMirrorsDbHelper = mirrorsDbHelper;
+    }
+
+    /**
+     * Set the mirrors available for the given update. The previous ranking is
+     * kept if the mirrors didn't change, discarded otherwise.
+     *
+     * @param downloadId the update the mirrors belong to
+     * @param mirrors the URL of each mirror keyed by name, in order of preference
+     */
+    public void setMirrors(String downloadId, Map<String, String> mirrors) {
+        List<Mirror> current = mMirrors.get(downloadId);
+        if (current != null && current.size() == mirrors.size()) {
+            boolean changed = false;
+            for (Mirror mirror : current) {
+                if (!mirror.getUrl().equals(mirrors.get(mirror.getName()))) {
+                    changed = true;
+                    break;
+                }
+            }
+            if (!changed) {
+                return;
+            }
+        }
+        List<Mirror> list = new ArrayList<>();
+        for (Map.Entry<String, String> mirror : mirrors.entrySet()) {
+            list.add(new Mirror(mirror.getKey(), mirror.getValue(), -1));
+        }
+        mMirrors.put(downloadId, Collections.unmodifiableList(list));
+    }
+
+    /**
+     * @return the mirrors of the given update, best first if ranked, never null
+     */
+    public List<Mirror> getMirrors(String downloadId) {
+        List<Mirror> mirrors = mMirrors.get(downloadId);
+        return mirrors != null ? mirrors : Collections.emptyList();
+    }
+
+    public Mirror getMirror(String downloadId, String name) {
+        for (Mirror mirror : getMirrors(downloadId)) {
+            if (mirror.getName().equals(name)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    public boolean isRanked(String downloadId) {
+        for (Mirror mirror : getMirrors(downloadId)) {
+            if (mirror.isRanked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void removeMirrors(String downloadId) {
+        mMirrors.remove(downloadId);
+        Future<?> pending = mPendingRankings.remove(downloadId);
+        if (pending != null) {
+            pending.cancel(true);
+        }
+    }
+
+    /**
+     * Pick one of the mirrors listed in the update catalog at random. Each
+     * mirror is picked in proportion to the weight assigned by the server,
+     * scaled down by how poorly the mirror performed on this device compared
+     * to the best one.
+     *
+     * @return the picked mirror, or null if no mirror has a positive weight
+     */
+    public UpdateMirror pickMirror(List<UpdateMirror> mirrors) {
+        Map<String, MirrorStats> freshStats =
+                mMirrorsDbHelper.getFreshMirrorStats(Constants.MIRROR_STATS_TTL);
+        double[] health = new double[mirrors.size()];
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < mirrors.size(); i++) {
+            MirrorStats stats = freshStats.get(Uri.parse(mirrors.get(i).getUrl()).getHost());
+            health[i] = stats != null ? stats.getScore() : -1;
+            if (health[i] > 0) {
+                bestScore = Math.min(bestScore, health[i]);
+            }
+        }
+
+        double total = 0;
+        double[] weights = new double[mirrors.size()];
+        for (int i = 0; i < mirrors.size(); i++) {
+            // Mirrors never tried are given the benefit of the doubt
+            double factor = health[i] > 0 ? Math.max(bestScore / health[i], MIN_HEALTH) : 1;
+            weights[i] = mirrors.get(i).getWeight() * factor;
+            total += weights[i];
+        }
+        if (total <= 0) {
+            return null;
+        }
+
+        double target = mRandom.nextDouble() * total;
+        for (int i = 0; i < mirrors.size(); i++) {
+            target -= weights[i];
+            if (target < 0 && weights[i] > 0) {
+                return mirrors.get(i);
+            }
+        }
+        // Rounding errors, take the last eligible mirror
+        for (int i = mirrors.size() - 1; i >= 0; i--) {
+            if (weights[i] > 0) {
+                return mirrors.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rank the mirrors of the given update in the background. Nothing is done
+     * if a ranking of the same update is already pending.
+     *
+     * @param downloadId the update whose mirrors have to be ranked
+     * @param onRanked called from a background thread once ranked, can be null
+     * @return true if a new ranking was scheduled
+     */
+    public boolean rankAsync(String downloadId, Runnable onRanked) {
+        synchronized (mPendingRankings) {
+            if (mPendingRankings.containsKey(downloadId)) {
+                return false;
+            }
+            try {
+                mPendingRankings.put(downloadId, mRankingExecutor.submit(() -> {
+                    try {
+                        rank(downloadId);
+                    } finally {
+                        synchronized (mPendingRankings) {
+                            mPendingRankings.remove(downloadId);
+                        }
+                    }
+                    if (onRanked != null) {
+                        onRanked.run();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Could not rank the mirrors of " + downloadId, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rank the mirrors of the given update. Mirrors with recent statistics are
+     * scored from history, the others are probed. This method blocks until all
+     * the probes completed or timed out.
+     *
+     * @return the ranked mirrors, best first
+     */
+    public List<Mirror> rank(String downloadId) {
+        List<Mirror> mirrors = getMirrors(downloadId);
+        Map<String, MirrorStats> freshStats =
+                mMirrorsDbHelper.getFreshMirrorStats(Constants.MIRROR_STATS_TTL);
+
+        List<Mirror> ranked = new ArrayList<>();
+        List<Callable<Mirror>> probes = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            MirrorStats stats = freshStats.get(mirror.getHost());
+            if (stats != null && stats.getScore() > 0) {
+                Log.d(TAG, "Using cached score of mirror " + mirror.getName() + " " +
+                        stats.getScore());
+                ranked.add(mirror.withScore(stats.getScore()));
+            } else {
+                probes.add(() -> mirror.withScore(probe(mirror.getHost())));
+            }
+        }
+
+        if (!probes.isEmpty()) {
+            try {
+                for (Future<Mirror> future :
+                        mProbeExecutor.invokeAll(probes, RANKING_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    if (future.isCancelled()) {
+                        continue;
+                    }
+                    // One failed probe must not drop the results of the others
+                    try {
+                        ranked.add(future.get());
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Could not probe a mirror", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Ranking interrupted", e);
+                Thread.currentThread().interrupt();
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Could not rank the mirrors", e);
+            }
+        }
+
+        // Keep the mirrors whose probe didn't complete, they simply go last
+        Set<String> rankedNames = new HashSet<>();
+        for (Mirror mirror : ranked) {
+            rankedNames.add(mirror.getName());
+        }
+        for (Mirror mirror : mirrors) {
+            if (!rankedNames.contains(mirror.getName())) {
+                ranked.add(mirror);
+            }
+        }
+
+        ranked.sort(RANKING_ORDER);
+        List<Mirror> result = Collections.unmodifiableList(ranked);
+        // Don't resurrect the mirrors of an update removed while ranking
+        mMirrors.replace(downloadId, mirrors, result);
+        return result;
+    }
+
+    private double probe(String host) {
+        Process process = null;
+        try {
+            String[] pingCmd = {"ping", "-c 5", host};
+            process = Runtime.getRuntime().exec(pingCmd);
+            // Reading the output would block until ping exits, so wait for it
+            // first: the few lines it prints fit in the pipe
+            if (!process.waitFor(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                // Some networks drop ICMP, that says nothing about the mirror
+                Log.d(TAG, "Timed out probing mirror " + host);
+                return -1;
+            } else {
+                try (BufferedReader in = new BufferedReader(
+                        new InputStreamReader(process.getInputStream()))) {
+                    for (String line; (line = in.readLine()) != null; ) {
+                        // rtt min/avg/max/mdev = 10.1/12.3/15.0/1.2 ms
+                        if (line.startsWith("rtt")) {
+                            String[] values = line.substring(line.indexOf('=') + 1)
+                                    .replace("ms", "").trim().split("/");
+                            double latency = Double.parseDouble(values[1]);
+                            Log.d(TAG, "Average rtt of mirror " + host + " " + latency);
+                            return mMirrorsDbHelper.recordLatency(host, latency).getScore();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // The ranking timed out, the ping process is destroyed below
+            Log.d(TAG, "Probe of mirror " + host + " interrupted");
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (IOException | NumberFormatException | IndexOutOfBoundsException e) {
+            Log.d(TAG, "Failed to rank mirror " + host, e);
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+        mMirrorsDbHelper.recordFailure(host);
+        return -1;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.lineageos.updater.MirrorsDbHelper;
+import org.lineageos.updater.misc.BackgroundExecutors;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Discovers the SourceForge mirrors of the project. The mirror list page is
+ * parsed while it is being downloaded and the result is cached in
+ * {@link MirrorsDbHelper}, so the page is fetched at most once per
+ * {@link Constants#SF_MIRRORS_TTL} and never on the UI thread. After a failed
+ * fetch, the page isn't fetched again before {@link Constants#SF_MIRRORS_RETRY_DELAY}.
+ * The UI thread must not read the cache before {@link #loadAsync} completed.
+ */
+public class SourceForgeMirrors {
+
+    private static final String TAG = "SourceForgeMirrors";
+
+    private static final int TIMEOUT_MS = 15 * 1000;
+    private static final String MIRROR_LIST_ID = "id=\"mirrorList\"";
+    private static final String AUTOSELECT_ID = "autoselect";
+
+    private static SourceForgeMirrors sInstance;
+
+    private final MirrorsDbHelper mMirrorsDbHelper;
+    private final ExecutorService mExecutor =
+            BackgroundExecutors.get(BackgroundExecutors.Pool.NETWORK);
+    private final AtomicBoolean mRefreshing = new AtomicBoolean();
+    private volatile Map<String, String> mMirrors;
+    private volatile long mFetchTime = -1;
+    // Elapsed realtime before which a failed fetch isn't retried
+    private volatile long mRetryTime;
+
+    public static synchronized SourceForgeMirrors getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SourceForgeMirrors(MirrorsDbHelper.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private SourceForgeMirrors(MirrorsDbHelper mirrorsDbHelper) {
+        mMirrorsDbHelper = mirrorsDbHelper;
+    }
+
+    private static String getFilePath(UpdateInfo update) {
+        String projectRootPath = Constants.SF_PROJECT_ROOT_PATH_NAME +
+                update.getVersion().split("v", 2)[1];
+        String device = SystemProperties.get(Constants.PROP_DEVICE);
+        return "/" + projectRootPath + "/" + device + "/" + update.getName();
+    }
+
+    /**
+     * Read the cached mirrors from the database in the background, unless
+     * they were already read.
+     *
+     * @param onLoaded called once the cache can be read without blocking,
+     *                 right away from the calling thread if it already can
+     * @return false if the cache couldn't be loaded, onLoaded isn't called
+     */
+    public boolean loadAsync(Runnable onLoaded) {
+        if (mMirrors != null) {
+            onLoaded.run();
+            return true;
+        }
+        try {
+            BackgroundExecutors.get(BackgroundExecutors.Pool.IO).execute(() -> {
+                getCachedMirrors();
+                onLoaded.run();
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not load the cached mirrors", e);
+            return false;
+        }
+        return true;
+    }
+
+    private Map<String, String> getCachedMirrors() {
+        Map<String, String> mirrors = mMirrors;
+        if (mirrors == null) {
+            mirrors = Collections.unmodifiableMap(mMirrorsDbHelper.getSourceForgeMirrors());
+            mFetchTime = mMirrorsDbHelper.getSourceForgeMirrorsFetchTime();
+            mMirrors = mirrors;
+        }
+        return mirrors;
+    }
+
+    /**
+     * Get the download links of the given update on the known SourceForge
+     * mirrors. Only cached mirrors are returned, this never touches the network.
+     *
+     * @return the URL of each mirror keyed by display name
+     */
+    public Map<String, String> getMirrorLinks(UpdateInfo update) {
+        Map<String, String> links = new LinkedHashMap<>();
+        String filePath;
+        try {
+            filePath = getFilePath(update);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Log.e(TAG, "Unexpected version " + update.getVersion());
+            return links;
+        }
+        for (Map.Entry<String, String> mirror : getCachedMirrors().entrySet()) {
+            String name = mirror.getValue() + " (SourceForge)";
+            if (links.containsKey(name)) {
+                // Several mirrors can be hosted in the same place
+                name = mirror.getValue() + " (SourceForge, " + mirror.getKey() + ")";
+            }
+            links.put(name, "https://" + mirror.getKey() + ".dl.sourceforge.net/project/" +
+                    Constants.SF_PROJECT_NAME + filePath);
+        }
+        return links;
+    }
+
+    public boolean isStale() {
+        getCachedMirrors();
+        return System.currentTimeMillis() - mFetchTime >= Constants.SF_MIRRORS_TTL;
+    }
+
+    /**
+     * Fetch the mirror list in the background if the cached one is stale.
+     * Nothing is done if a refresh is already in progress or if the last one
+     * failed less than {@link Constants#SF_MIRRORS_RETRY_DELAY} ago.
+     *
+     * @param update any update of the project, used to build the page URL
+     * @param onRefreshed called from a background thread if the mirror list
+     *                    changed, can be null
+     * @return true if a refresh was scheduled
+     */
+    public boolean refreshAsync(UpdateInfo update, Runnable onRefreshed) {
+        if (SystemClock.elapsedRealtime() < mRetryTime) {
+            Log.d(TAG, "Not fetching the mirrors again so soon after a failure");
+            return false;
+        }
+        if (!mRefreshing.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    if (!isStale()) {
+                        return;
+                    }
+                    Map<String, String> mirrors = fetch(update);
+                    if (mirrors.isEmpty()) {
+                        mRetryTime = SystemClock.elapsedRealtime() +
+                                Constants.SF_MIRRORS_RETRY_DELAY;
+                        return;
+                    }
+                    boolean changed = !mirrors.equals(getCachedMirrors());
+                    mMirrorsDbHelper.setSourceForgeMirrors(mirrors);
+                    mMirrors = Collections.unmodifiableMap(mirrors);
+                    mFetchTime = System.currentTimeMillis();
+                    Log.d(TAG, "Found " + mirrors.size() + " mirrors");
+                    if (changed && onRefreshed != null) {
+                        onRefreshed.run();
+                    }
+                } finally {
+                    mRefreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not refresh the mirrors", e);
+            mRefreshing.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Download the mirror list page and extract the mirrors of #mirrorList.
+     * The page is read line by line and the download stops as soon as the
+     * list ends, only the list items themselves are handed to the HTML parser.
+     *
+     * @return the place of each mirror keyed by mirror id
+     */
+    private Map<String, String> fetch(UpdateInfo update) {
+        Map<String, String> mirrors = new LinkedHashMap<>();
+        HttpURLConnection connection = null;
+        try {
+            String mirrorsUrl = "https://sourceforge.net/settings/mirror_choices?projectname=" +
+                    Constants.SF_PROJECT_NAME + "&filename=" +
+                    URLEncoder.encode(getFilePath(update), StandardCharsets.UTF_8.name());
+            Log.d(TAG, "Fetching " + mirrorsUrl);
+            connection = (HttpURLConnection) new URL(mirrorsUrl).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    connection.getInputStream(), StandardCharsets.UTF_8))) {
+                StringBuilder pending = null;
+                for (String line; (line = in.readLine()) != null; ) {
+                    if (pending == null) {
+                        int listStart = line.indexOf(MIRROR_LIST_ID);
+                        if (listStart < 0) {
+                            continue;
+                        }
+                        pending = new StringBuilder();
+                        line = line.substring(listStart + MIRROR_LIST_ID.length());
+                    }
+                    pending.append(line).append('\n');
+                    if (parseMirrors(pending, mirrors)) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            Log.d(TAG, "Failed to fetch sourceforge mirrors!", e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        return mirrors;
+    }
+
+    /**
+     * Consume the complete list items at the start of the given HTML.
+     *
+     * @return true if the end of the list was reached
+     */
+    private static boolean parseMirrors(StringBuilder html, Map<String, String> mirrors) {
+        while (true) {
+            int itemStart = html.indexOf("<li");
+            int listEnd = html.indexOf("</ul>");
+            if (listEnd >= 0 && (itemStart < 0 || listEnd < itemStart)) {
+                return true;
+            }
+            if (itemStart < 0) {
+                html.setLength(0);
+                return false;
+            }
+            int itemEnd = html.indexOf("</li>", itemStart);
+            if (itemEnd < 0) {
+                html.delete(0, itemStart);
+                return false;
+            }
+            itemEnd += "</li>".length();
+            parseMirror(html.substring(itemStart, itemEnd), mirrors);
+            html.delete(0, itemEnd);
+        }
+    }
+
+    private static void parseMirror(String html, Map<String, String> mirrors) {
+        Element item = Jsoup.parseBodyFragment(html).selectFirst("li");
+        if (item == null) {
+            return;
+        }
+        String id = item.attr("id");
+        String text = item.text();
+        int open = text.lastIndexOf('(');
+        int close = text.lastIndexOf(')');
+        if (id.isEmpty() || id.equals(AUTOSELECT_ID) || open < 0 || close <= open) {
+            return;
+        }
+        String place = text.substring(open + 1, close).split(",", 2)[0].trim();
+        Log.d(TAG, "mirror: " + id + " country name: " + place);
+        mirrors.put(id, place);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.util.Log;
+
+import org.lineageos.updater.misc.BackgroundExecutors;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Delivers the change notifications of the updates from a single thread.
+ * The first event of an update opens a window, the events of the same update
+ * received until the window closes are merged with it and each distinct
+ * action is delivered once when it closes, together with the state of the
+ * update at that time. Nothing is lost by merging.
+ */
+class UpdateEventDispatcher {
+
+    private static final String TAG = "UpdateEventDispatcher";
+
+    private static final int QUEUE_SIZE = 256;
+
+    private final Function<String, UpdateInfo> mUpdateSource;
+    private final long mWindowMs;
+    private final ExecutorService mExecutor =
+            BackgroundExecutors.newSerialExecutor("events", QUEUE_SIZE);
+    private final Map<String, Set<String>> mPendingEvents = new HashMap<>();
+    // Last state of the removed updates, the update source no longer knows them
+    private final Map<String, UpdateInfo> mRemovedUpdates = new HashMap<>();
+    private final AtomicLong mEmittedEvents = new AtomicLong();
+    private final AtomicLong mCoalescedEvents = new AtomicLong();
+    private final List<Registration> mListeners = new CopyOnWriteArrayList<>();
+
+    private static class Registration {
+        private final UpdateListener mListener;
+        private final Executor mExecutor;
+        // Time between the emit of the events and the start of their callback
+        private final AtomicLong mDispatchNanos = new AtomicLong();
+        private final AtomicLong mDispatchCount = new AtomicLong();
+
+        private Registration(UpdateListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        private void dispatch(Runnable event) {
+            long emitted = System.nanoTime();
+            try {
+                mExecutor.execute(() -> {
+                    mDispatchNanos.addAndGet(System.nanoTime() - emitted);
+                    mDispatchCount.incrementAndGet();
+                    event.run();
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Could not deliver an event to " + mListener, e);
+            }
+        }
+    }
+
+    /**
+     * @param updateSource gives the current state of an update, null if unknown
+     * @param windowMs how long the events of an update are collected before
+     *                 being delivered, 0 to deliver them as soon as possible
+     */
+    UpdateEventDispatcher(Function<String, UpdateInfo> updateSource, long windowMs) {
+        mUpdateSource = updateSource;
+        mWindowMs = windowMs;
+    }
+
+    void addListener(UpdateListener listener, Executor executor) {
+        mListeners.add(new Registration(listener, executor));
+    }
+
+    void removeListener(UpdateListener listener) {
+        for (Registration registration : mListeners) {
+            if (registration.mListener == listener) {
+                mListeners.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Notify the listeners that the updates were loaded, right away.
+     */
+    void dispatchLoaded() {
+        try {
+            mExecutor.execute(() -> {
+                for (Registration registration : mListeners) {
+                    registration.dispatch(registration.mListener::onUpdatesLoaded);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not dispatch the loaded event", e);
+        }
+    }
+
+    /**
+     * Queue the removal of the given update. Its pending events are dropped,
+     * the listeners only get its last state.
+     */
+    void dispatchRemoved(UpdateInfo update) {
+        synchronized (mPendingEvents) {
+            mRemovedUpdates.put(update.getDownloadId(), update);
+            dispatch(UpdaterController.ACTION_UPDATE_REMOVED, update.getDownloadId());
+        }
+    }
+
+    /**
+     * Queue the given event. Nothing is queued if the same event of the same
+     * update is already waiting.
+     */
+    void dispatch(String action, String downloadId) {
+        synchronized (mPendingEvents) {
+            Set<String> actions = mPendingEvents.get(downloadId);
+            if (actions == null) {
+                actions = new LinkedHashSet<>();
+                mPendingEvents.put(downloadId, actions);
+                try {
+                    BackgroundExecutors.schedule(mExecutor, () -> deliver(downloadId),
+                            mWindowMs);
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "Could not schedule the events of " + downloadId, e);
+                    mPendingEvents.remove(downloadId);
+                    return;
+                }
+            }
+            if (UpdaterController.ACTION_UPDATE_REMOVED.equals(action)) {
+                mCoalescedEvents.addAndGet(actions.size());
+                actions.clear();
+            } else if (actions.contains(UpdaterController.ACTION_UPDATE_REMOVED)) {
+                mCoalescedEvents.incrementAndGet();
+                return;
+            }
+            if (!actions.add(action)) {
+                mCoalescedEvents.incrementAndGet();
+            }
+        }
+    }
+
+    private void deliver(String downloadId) {
+        Set<String> actions;
+        UpdateInfo removed;
+        synchronized (mPendingEvents) {
+            actions = mPendingEvents.remove(downloadId);
+            removed = mRemovedUpdates.remove(downloadId);
+        }
+        if (actions == null) {
+            return;
+        }
+        if (removed != null) {
+            for (Registration registration : mListeners) {
+                registration.dispatch(() -> registration.mListener.onUpdateRemoved(removed));
+            }
+            mEmittedEvents.incrementAndGet();
+            return;
+        }
+        UpdateInfo update = mUpdateSource.apply(downloadId);
+        if (update == null) {
+            Log.d(TAG, "Dropping the events of the unknown update " + downloadId);
+            mCoalescedEvents.addAndGet(actions.size());
+            return;
+        }
+        for (String action : actions) {
+            for (Registration registration : mListeners) {
+                UpdateListener listener = registration.mListener;
+                switch (action) {
+                    case UpdaterController.ACTION_UPDATE_STATUS:
+                        registration.dispatch(() -> listener.onUpdateStatusChanged(update));
+                        break;
+                    case UpdaterController.ACTION_DOWNLOAD_PROGRESS:
+                        registration.dispatch(() -> listener.onDownloadProgress(update));
+                        break;
+                    case UpdaterController.ACTION_INSTALL_PROGRESS:
+                        registration.dispatch(() -> listener.onInstallProgress(update));
+                        break;
+                    case UpdaterController.ACTION_INSTALL_FINISHED:
+                        registration.dispatch(() -> listener.onInstallFinished(update));
+                        break;
+                }
+            }
+            mEmittedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * Log the number of events and, for each listener, the average time between
+     * the emit of an event and the moment its callback starts running.
+     */
+    void logStats() {
+        Log.d(TAG, "Events emitted: " + mEmittedEvents.get() + ", coalesced: " +
+                mCoalescedEvents.get());
+        for (Registration registration : mListeners) {
+            long count = registration.mDispatchCount.get();
+            if (count > 0) {
+                Log.d(TAG, registration.mListener.getClass().getName() + ": " + count +
+                        " events, " + registration.mDispatchNanos.get() / count +
+                        " ns per event");
+            }
+        }
+    }
+
+    /**
+     * @return the number of events delivered so far
+     */
+    long getEmittedCount() {
+        return mEmittedEvents.get();
+    }
+
+    /**
+     * @return the number of events merged into an other one or dropped so far
+     */
+    long getCoalescedCount() {
+        return mCoalescedEvents.get();
+    }
+}
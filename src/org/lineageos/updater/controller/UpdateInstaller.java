@@ -23,6 +23,7 @@ import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.misc.BackgroundExecutors;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.FileUtils;
 import org.lineageos.updater.misc.Utils;
@@ -31,6 +32,8 @@ import org.lineageos.updater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 class UpdateInstaller {
 
@@ -39,7 +42,7 @@ class UpdateInstaller {
     private static UpdateInstaller sInstance = null;
     private static String sInstallingUpdate = null;
 
-    private Thread mPrepareUpdateThread;
+    private Future<?> mPrepareUpdate;
     private volatile boolean mCanCancel;
 
     private final Context mContext;
@@ -100,9 +103,7 @@ class UpdateInstaller {
             android.os.RecoverySystem.installPackage(mContext, update);
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
-            mUpdaterController.getActualUpdate(downloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
-            mUpdaterController.notifyUpdateChange(downloadId);
+            mUpdaterController.setInstallStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
         }
     }
 
@@ -118,9 +119,8 @@ class UpdateInstaller {
                 public void update(int progress) {
                     long now = SystemClock.elapsedRealtime();
                     if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
+                        mUpdaterController.setInstallProgress(update.getDownloadId(),
+                                progress, false);
                         mLastUpdate = now;
                     }
                 }
@@ -132,39 +132,42 @@ class UpdateInstaller {
                     mCanCancel = true;
                     FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
                     mCanCancel = false;
-                    if (mPrepareUpdateThread.isInterrupted()) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(0);
+                    if (Thread.currentThread().isInterrupted()) {
                         uncryptFile.delete();
+                        mUpdaterController.setInstallStatus(update.getDownloadId(),
+                                UpdateStatus.INSTALLATION_CANCELLED);
                     } else {
                         installPackage(uncryptFile, update.getDownloadId());
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Could not copy update", e);
                     uncryptFile.delete();
-                    mUpdaterController.getActualUpdate(update.getDownloadId())
-                            .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                    mUpdaterController.setInstallStatus(update.getDownloadId(),
+                            UpdateStatus.INSTALLATION_FAILED);
                 } finally {
                     synchronized (UpdateInstaller.this) {
                         mCanCancel = false;
-                        mPrepareUpdateThread = null;
+                        mPrepareUpdate = null;
                         sInstallingUpdate = null;
                     }
-                    mUpdaterController.notifyUpdateChange(update.getDownloadId());
                 }
             }
         };
 
-        mPrepareUpdateThread = new Thread(copyUpdateRunnable);
-        mPrepareUpdateThread.start();
+        // Queued before any status change the copy could report
+        mUpdaterController.setInstallStatus(update.getDownloadId(), UpdateStatus.INSTALLING);
+
+        try {
+            mPrepareUpdate = BackgroundExecutors.get(BackgroundExecutors.Pool.IO)
+                    .submit(copyUpdateRunnable);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not copy update", e);
+            mUpdaterController.setInstallStatus(update.getDownloadId(),
+                    UpdateStatus.INSTALLATION_FAILED);
+            return;
+        }
         sInstallingUpdate = update.getDownloadId();
         mCanCancel = false;
-
-        mUpdaterController.getActualUpdate(update.getDownloadId())
-                .setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(update.getDownloadId());
     }
 
     public synchronized void cancel() {
@@ -172,6 +175,6 @@ class UpdateInstaller {
             Log.d(TAG, "Nothing to cancel");
             return;
         }
-        mPrepareUpdateThread.interrupt();
+        mPrepareUpdate.cancel(true);
     }
 }
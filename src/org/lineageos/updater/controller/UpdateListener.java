@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import org.lineageos.updater.model.UpdateInfo;
+
+/**
+ * Observer of the updates known to {@link UpdaterController}. The given
+ * updates are immutable copies taken when the notification is delivered.
+ * Each method is called on the executor the listener was registered with.
+ */
+public interface UpdateListener {
+
+    /**
+     * The stored updates were loaded, the controller can be queried.
+     */
+    default void onUpdatesLoaded() {
+    }
+
+    default void onUpdateStatusChanged(UpdateInfo update) {
+    }
+
+    default void onDownloadProgress(UpdateInfo update) {
+    }
+
+    default void onInstallProgress(UpdateInfo update) {
+    }
+
+    default void onInstallFinished(UpdateInfo update) {
+    }
+
+    /**
+     * The update is no longer known to the controller.
+     *
+     * @param update the last state of the update
+     */
+    default void onUpdateRemoved(UpdateInfo update) {
+    }
+}
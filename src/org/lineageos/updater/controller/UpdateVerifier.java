@@ -0,0 +1,578 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import org.lineageos.updater.misc.BackgroundExecutors;
+import org.lineageos.updater.misc.ChunkedHasher;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.misc.ZipIndex;
+import org.lineageos.updater.model.FileIdentity;
+import org.lineageos.updater.model.InstallManifest;
+import org.lineageos.updater.model.VerifiedFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Verifies the downloaded packages before they can be installed, as recovery
+ * would: the whole-file signature must come from one of the platform OTA
+ * certificates and the metadata must target this device. The package is read
+ * through memory mapped windows and hashed in place, nothing is copied.
+ * Verifications run one at a time on a dedicated worker, report their progress
+ * and stop as soon as they're cancelled. A package whose content is known to
+ * have been verified before is only hashed again.
+ */
+class UpdateVerifier {
+
+    private static final String TAG = "UpdateVerifier";
+
+    private static final String OTA_CERTS_PATH = "/system/etc/security/otacerts.zip";
+    private static final String METADATA_PATH = "META-INF/com/android/metadata";
+
+    // Size of the windows of the package mapped at once
+    private static final int MAP_SIZE = 32 * 1024 * 1024;
+    private static final int FOOTER_SIZE = 6;
+    private static final int EOCD_SIZE = 22;
+    private static final int QUEUE_SIZE = 8;
+
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_SET = 0x31;
+    private static final int TAG_CONTEXT_0 = 0xa0;
+    private static final int TAG_CONTEXT_1 = 0xa1;
+
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String OID_MESSAGE_DIGEST = "1.2.840.113549.1.9.4";
+    private static final Map<String, String> DIGEST_ALGORITHMS = new HashMap<>();
+
+    static {
+        DIGEST_ALGORITHMS.put("1.3.14.3.2.26", "SHA1");
+        DIGEST_ALGORITHMS.put("2.16.840.1.101.3.4.2.1", "SHA256");
+        DIGEST_ALGORITHMS.put("2.16.840.1.101.3.4.2.2", "SHA384");
+        DIGEST_ALGORITHMS.put("2.16.840.1.101.3.4.2.3", "SHA512");
+    }
+
+    private static UpdateVerifier sInstance;
+
+    private final ExecutorService mExecutor =
+            BackgroundExecutors.newSerialExecutor("verification", QUEUE_SIZE);
+    private List<PublicKey> mTrustedKeys;
+
+    interface Listener {
+        /**
+         * Called from the worker thread each time the progress changes.
+         */
+        void onProgress(int progress);
+
+        /**
+         * Called from the worker thread once the package was verified or
+         * rejected, never if cancelled.
+         *
+         * @param error why the package was rejected, null if it was verified
+         * @param verifiedFile what the package looked like when verified, null
+         *        if it wasn't
+         * @param installManifest what installing the package needs to know,
+         *        null if it wasn't verified
+         */
+        void onVerified(boolean verified, String error, VerifiedFile verifiedFile,
+                InstallManifest installManifest);
+
+        /**
+         * Called from the worker thread if the package couldn't be read to the
+         * end. It may still be valid, verifying it again can succeed.
+         */
+        void onFailed(String error);
+    }
+
+    static synchronized UpdateVerifier getInstance() {
+        if (sInstance == null) {
+            sInstance = new UpdateVerifier();
+        }
+        return sInstance;
+    }
+
+    private UpdateVerifier() {
+    }
+
+    /**
+     * Queue the verification of the given package.
+     *
+     * @param previous what the file of the update looked like the last time it
+     *        was verified, null if unknown. If the content of the file didn't
+     *        change since, hashing it is enough
+     * @return the verification, cancel it to stop verifying
+     * @throws java.util.concurrent.RejectedExecutionException if too many
+     *         verifications are already queued
+     */
+    Future<?> verify(File file, VerifiedFile previous, Listener listener) {
+        return mExecutor.submit(() -> {
+            final long start = SystemClock.elapsedRealtime();
+            String error = null;
+            VerifiedFile verifiedFile = null;
+            InstallManifest installManifest = null;
+            try {
+                verifiedFile = verifyFile(file, previous, listener);
+                // Read now, so that installing doesn't have to open the package
+                installManifest = Utils.readInstallManifest(file);
+            } catch (CancellationException | InterruptedIOException e) {
+                Log.d(TAG, "Verification of " + file.getName() + " cancelled");
+                return;
+            } catch (GeneralSecurityException e) {
+                Log.e(TAG, file.getName() + " rejected", e);
+                verifiedFile = null;
+                error = e.getMessage();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not verify " + file.getName(), e);
+                listener.onFailed(e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                // Nobody reads the future, the listener must hear about it
+                Log.e(TAG, "Unexpected error verifying " + file.getName(), e);
+                listener.onFailed(e.toString());
+                return;
+            }
+            Log.d(TAG, "Verification of " + file.getName() + " done in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+            listener.onVerified(verifiedFile != null, error, verifiedFile, installManifest);
+        });
+    }
+
+    private VerifiedFile verifyFile(File file, VerifiedFile previous, Listener listener)
+            throws IOException, GeneralSecurityException {
+        final FileIdentity identity = FileIdentity.of(file);
+        VerifiedFile verifiedFile = null;
+        // A file of an other size can't have the same content
+        if (previous != null && previous.getIdentity().getSize() == identity.getSize()) {
+            ChunkedHasher.Digest digest = ChunkedHasher.hash(file, previous.getChunkSize(),
+                    listener::onProgress);
+            if (digest.getRootHex().equals(previous.getDigest())) {
+                Log.d(TAG, file.getName() + " has the content that was verified");
+                verifiedFile = new VerifiedFile(file.getAbsolutePath(), identity,
+                        digest.getChunkSize(), digest.getRootHex());
+            }
+        }
+        if (verifiedFile == null) {
+            // Lets the next checks of the file skip the signature
+            ChunkedHasher.Digest digest = verifySignature(file, listener);
+            verifyMetadata(file);
+            verifiedFile = new VerifiedFile(file.getAbsolutePath(), identity,
+                    digest.getChunkSize(), digest.getRootHex());
+        }
+        if (!identity.equals(FileIdentity.of(file))) {
+            throw new IOException(file.getName() + " changed while being verified");
+        }
+        return verifiedFile;
+    }
+
+    private synchronized List<PublicKey> getTrustedKeys()
+            throws IOException, GeneralSecurityException {
+        if (mTrustedKeys == null) {
+            List<PublicKey> keys = new ArrayList<>();
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            try (ZipFile zipFile = new ZipFile(OTA_CERTS_PATH)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        keys.add(factory.generateCertificate(in).getPublicKey());
+                    }
+                }
+            }
+            if (keys.isEmpty()) {
+                throw new SignatureException("No OTA certificate in " + OTA_CERTS_PATH);
+            }
+            mTrustedKeys = keys;
+        }
+        return mTrustedKeys;
+    }
+
+    /**
+     * Check the whole-file signature stored in the zip comment. The signed
+     * part is everything but the comment and its length. The chunked digest of
+     * the file is computed from the same mapped windows.
+     *
+     * @return the chunked digest of the whole file
+     */
+    private ChunkedHasher.Digest verifySignature(File file, Listener listener)
+            throws IOException, GeneralSecurityException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            final long fileSize = channel.size();
+            if (fileSize < EOCD_SIZE) {
+                throw new SignatureException("File too short");
+            }
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    fileSize - FOOTER_SIZE, FOOTER_SIZE);
+            if ((footer.get(2) & 0xff) != 0xff || (footer.get(3) & 0xff) != 0xff) {
+                throw new SignatureException("No signature in file (no footer)");
+            }
+            final int signatureStart = (footer.get(0) & 0xff) | ((footer.get(1) & 0xff) << 8);
+            final int commentSize = (footer.get(4) & 0xff) | ((footer.get(5) & 0xff) << 8);
+            if (commentSize + EOCD_SIZE > fileSize || signatureStart > commentSize ||
+                    signatureStart < FOOTER_SIZE) {
+                throw new SignatureException("Invalid signature footer");
+            }
+
+            byte[] eocd = new byte[commentSize + EOCD_SIZE];
+            channel.map(FileChannel.MapMode.READ_ONLY, fileSize - eocd.length, eocd.length)
+                    .get(eocd);
+            if (!isEocdMarker(eocd, 0)) {
+                throw new SignatureException("No signed zip end of central directory");
+            }
+            // Anything appended after the signed part could hide an other directory
+            for (int i = 4; i < eocd.length - 3; i++) {
+                if (isEocdMarker(eocd, i)) {
+                    throw new SignatureException("EOCD marker found after start of EOCD");
+                }
+            }
+
+            SignerInfo signer = parseSignature(Arrays.copyOfRange(eocd,
+                    eocd.length - signatureStart, eocd.length - FOOTER_SIZE));
+            final long signedSize = fileSize - commentSize - 2;
+            ChunkedHasher.Accumulator chunks = new ChunkedHasher.Accumulator(fileSize,
+                    ChunkedHasher.DEFAULT_CHUNK_SIZE);
+            if (signer.mSignedAttributes == null) {
+                signer.mSignature.initVerify(signer.mKey);
+                hash(channel, signedSize, buffer -> {
+                    chunks.update(buffer.duplicate());
+                    signer.mSignature.update(buffer);
+                }, listener);
+                if (!signer.mSignature.verify(signer.mSignatureBytes)) {
+                    throw new SignatureException("Signature mismatch");
+                }
+            } else {
+                MessageDigest digest = MessageDigest.getInstance(signer.mDigestAlgorithm);
+                hash(channel, signedSize, buffer -> {
+                    chunks.update(buffer.duplicate());
+                    digest.update(buffer);
+                }, listener);
+                if (!MessageDigest.isEqual(digest.digest(), signer.mMessageDigest)) {
+                    throw new SignatureException("Package digest mismatch");
+                }
+                signer.mSignature.initVerify(signer.mKey);
+                signer.mSignature.update(signer.mSignedAttributes);
+                if (!signer.mSignature.verify(signer.mSignatureBytes)) {
+                    throw new SignatureException("Signature mismatch");
+                }
+            }
+            // The comment isn't signed but is part of the file
+            chunks.update(channel.map(FileChannel.MapMode.READ_ONLY, signedSize,
+                    fileSize - signedSize));
+            return chunks.digest();
+        }
+    }
+
+    private interface BufferConsumer {
+        void accept(ByteBuffer buffer) throws GeneralSecurityException;
+    }
+
+    private static void hash(FileChannel channel, long size, BufferConsumer consumer,
+            Listener listener) throws IOException, GeneralSecurityException {
+        int lastProgress = -1;
+        for (long position = 0; position < size; ) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+            long length = Math.min(MAP_SIZE, size - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    length);
+            consumer.accept(buffer);
+            position += length;
+            int progress = (int) (position * 100 / size);
+            if (progress != lastProgress) {
+                lastProgress = progress;
+                listener.onProgress(progress);
+            }
+        }
+    }
+
+    private static boolean isEocdMarker(byte[] buffer, int offset) {
+        return buffer[offset] == 0x50 && buffer[offset + 1] == 0x4b &&
+                buffer[offset + 2] == 0x05 && buffer[offset + 3] == 0x06;
+    }
+
+    private static class SignerInfo {
+        private PublicKey mKey;
+        private String mDigestAlgorithm;
+        private Signature mSignature;
+        private byte[] mSignatureBytes;
+        // DER encoding of the signed attributes, null if the content is signed directly
+        private byte[] mSignedAttributes;
+        private byte[] mMessageDigest;
+    }
+
+    /**
+     * Parse the PKCS#7 signed data of the package and find the trusted key
+     * it was signed with. Only the first signer is considered, packages have
+     * a single one.
+     */
+    private SignerInfo parseSignature(byte[] block)
+            throws IOException, GeneralSecurityException {
+        DerReader contentInfo = new DerReader(block, 0, block.length)
+                .next(TAG_SEQUENCE).children();
+        if (!OID_SIGNED_DATA.equals(contentInfo.next(TAG_OID).getOid())) {
+            throw new SignatureException("Not a PKCS#7 signed data");
+        }
+        DerReader signedData = contentInfo.next(TAG_CONTEXT_0).children()
+                .next(TAG_SEQUENCE).children();
+        signedData.next(TAG_INTEGER);
+        signedData.next(TAG_SET);
+        signedData.next(TAG_SEQUENCE);
+        DerElement element = signedData.next();
+        List<Certificate> certificates = new ArrayList<>();
+        if (element.mTag == TAG_CONTEXT_0) {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            DerReader reader = element.children();
+            while (reader.hasNext()) {
+                certificates.add(factory.generateCertificate(
+                        new ByteArrayInputStream(reader.next().getEncoded())));
+            }
+            element = signedData.next();
+        }
+        if (element.mTag == TAG_CONTEXT_1) {
+            element = signedData.next();
+        }
+        if (element.mTag != TAG_SET) {
+            throw new SignatureException("No signer info");
+        }
+
+        DerReader signerInfo = element.children().next(TAG_SEQUENCE).children();
+        signerInfo.next(TAG_INTEGER);
+        signerInfo.next(TAG_SEQUENCE);
+        SignerInfo signer = new SignerInfo();
+        String digestOid = signerInfo.next(TAG_SEQUENCE).children().next(TAG_OID).getOid();
+        signer.mDigestAlgorithm = DIGEST_ALGORITHMS.get(digestOid);
+        if (signer.mDigestAlgorithm == null) {
+            throw new SignatureException("Unsupported digest algorithm " + digestOid);
+        }
+        element = signerInfo.next();
+        if (element.mTag == TAG_CONTEXT_0) {
+            // The attributes are signed as a SET, not with their implicit tag
+            signer.mSignedAttributes = element.getEncoded();
+            signer.mSignedAttributes[0] = (byte) TAG_SET;
+            DerReader attributes = element.children();
+            while (attributes.hasNext()) {
+                DerReader attribute = attributes.next(TAG_SEQUENCE).children();
+                if (OID_MESSAGE_DIGEST.equals(attribute.next(TAG_OID).getOid())) {
+                    signer.mMessageDigest = attribute.next(TAG_SET).children()
+                            .next(TAG_OCTET_STRING).getContent();
+                }
+            }
+            if (signer.mMessageDigest == null) {
+                throw new SignatureException("No message digest in the signed attributes");
+            }
+            element = signerInfo.next();
+        }
+        if (element.mTag != TAG_SEQUENCE) {
+            throw new SignatureException("No signature algorithm");
+        }
+        signer.mSignatureBytes = signerInfo.next(TAG_OCTET_STRING).getContent();
+
+        List<PublicKey> trustedKeys = getTrustedKeys();
+        for (Certificate certificate : certificates) {
+            if (trustedKeys.contains(certificate.getPublicKey())) {
+                signer.mKey = certificate.getPublicKey();
+                break;
+            }
+        }
+        if (signer.mKey == null) {
+            throw new SignatureException("Signature doesn't match any trusted key");
+        }
+        String keyAlgorithm = signer.mKey.getAlgorithm();
+        if ("RSA".equals(keyAlgorithm)) {
+            signer.mSignature = Signature.getInstance(signer.mDigestAlgorithm + "withRSA");
+        } else if ("EC".equals(keyAlgorithm)) {
+            signer.mSignature = Signature.getInstance(signer.mDigestAlgorithm + "withECDSA");
+        } else {
+            throw new SignatureException("Unsupported key algorithm " + keyAlgorithm);
+        }
+        return signer;
+    }
+
+    /**
+     * Check that the package targets this device and, unless downgrades are
+     * allowed, isn't older than the running build.
+     */
+    private static void verifyMetadata(File file) throws IOException, SignatureException {
+        Map<String, String> metadata = new HashMap<>();
+        try (ZipIndex zip = ZipIndex.open(file)) {
+            ZipIndex.Entry entry = zip.getEntry(METADATA_PATH);
+            if (entry == null) {
+                throw new SignatureException("No metadata in package");
+            }
+            String content = new String(zip.read(entry), StandardCharsets.UTF_8);
+            for (String line : content.split("\\r?\\n")) {
+                int separator = line.indexOf('=');
+                if (separator > 0) {
+                    metadata.put(line.substring(0, separator).trim(),
+                            line.substring(separator + 1).trim());
+                }
+            }
+        }
+
+        String devices = metadata.get("pre-device");
+        if (devices == null || !Arrays.asList(devices.split("[,|]")).contains(Build.DEVICE)) {
+            throw new SignatureException("Package is for " + devices + ", not " +
+                    Build.DEVICE);
+        }
+        String postTimestamp = metadata.get("post-timestamp");
+        if (postTimestamp != null &&
+                !"yes".equals(metadata.get("ota-downgrade")) &&
+                !SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false)) {
+            try {
+                if (Long.parseLong(postTimestamp) <
+                        SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
+                    throw new SignatureException("Package is older than the current build");
+                }
+            } catch (NumberFormatException e) {
+                throw new SignatureException("Invalid post-timestamp " + postTimestamp);
+            }
+        }
+    }
+
+    private static final class DerElement {
+        private final byte[] mBuffer;
+        private final int mTag;
+        private final int mStart;
+        private final int mContentStart;
+        private final int mEnd;
+
+        private DerElement(byte[] buffer, int tag, int start, int contentStart, int end) {
+            mBuffer = buffer;
+            mTag = tag;
+            mStart = start;
+            mContentStart = contentStart;
+            mEnd = end;
+        }
+
+        private DerReader children() {
+            return new DerReader(mBuffer, mContentStart, mEnd - mContentStart);
+        }
+
+        private byte[] getContent() {
+            return Arrays.copyOfRange(mBuffer, mContentStart, mEnd);
+        }
+
+        private byte[] getEncoded() {
+            return Arrays.copyOfRange(mBuffer, mStart, mEnd);
+        }
+
+        private String getOid() {
+            StringBuilder oid = new StringBuilder();
+            long value = 0;
+            for (int i = mContentStart; i < mEnd; i++) {
+                value = (value << 7) | (mBuffer[i] & 0x7f);
+                if ((mBuffer[i] & 0x80) == 0) {
+                    if (oid.length() == 0) {
+                        int first = (int) Math.min(value / 40, 2);
+                        oid.append(first).append('.').append(value - first * 40);
+                    } else {
+                        oid.append('.').append(value);
+                    }
+                    value = 0;
+                }
+            }
+            return oid.toString();
+        }
+    }
+
+    /**
+     * Minimal reader of DER encoded values, enough to walk a PKCS#7 signature.
+     */
+    private static final class DerReader {
+        private final byte[] mBuffer;
+        private final int mEnd;
+        private int mPosition;
+
+        private DerReader(byte[] buffer, int offset, int length) {
+            mBuffer = buffer;
+            mPosition = offset;
+            mEnd = offset + length;
+        }
+
+        private boolean hasNext() {
+            return mPosition < mEnd;
+        }
+
+        private DerElement next() throws SignatureException {
+            if (mPosition + 2 > mEnd) {
+                throw new SignatureException("Truncated signature");
+            }
+            final int start = mPosition;
+            int tag = mBuffer[mPosition++] & 0xff;
+            int length = mBuffer[mPosition++] & 0xff;
+            if ((length & 0x80) != 0) {
+                int count = length & 0x7f;
+                if (count == 0 || count > 3 || mPosition + count > mEnd) {
+                    throw new SignatureException("Unsupported length encoding");
+                }
+                length = 0;
+                for (int i = 0; i < count; i++) {
+                    length = (length << 8) | (mBuffer[mPosition++] & 0xff);
+                }
+            }
+            if (length > mEnd - mPosition) {
+                throw new SignatureException("Truncated signature");
+            }
+            DerElement element = new DerElement(mBuffer, tag, start, mPosition,
+                    mPosition + length);
+            mPosition += length;
+            return element;
+        }
+
+        private DerElement next(int tag) throws SignatureException {
+            DerElement element = next();
+            if (element.mTag != tag) {
+                throw new SignatureException("Unexpected tag " + element.mTag + ", expected " +
+                        tag);
+            }
+            return element;
+        }
+    }
+}
@@ -16,50 +16,62 @@
 package org.lineageos.updater.controller;
 
 import android.content.Context;
-import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
-
-import android.os.SystemProperties;
-
+import org.lineageos.updater.DownloadSessionsDbHelper;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesActivity;
 import org.lineageos.updater.UpdatesDbHelper;
+import org.lineageos.updater.UpdatesDbWriter;
+import org.lineageos.updater.VerifiedFilesDbHelper;
 import org.lineageos.updater.MirrorsDbHelper;
 import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.misc.BackgroundExecutors;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.FileIdentity;
+import org.lineageos.updater.model.InstallManifest;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateMirror;
+import org.lineageos.updater.model.UpdateSnapshot;
 import org.lineageos.updater.model.UpdateStatus;
+import org.lineageos.updater.model.VerifiedFile;
 import org.lineageos.updater.misc.Constants;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 import com.google.android.material.snackbar.Snackbar;
 
+/**
+ * Owns the state of the updates. The state is only ever touched from a single
+ * thread: commands and the events of the downloads and installations are
+ * queued to it as messages. Readers are given an immutable snapshot of the
+ * state, replaced as a whole after each message. Each update in it is an
+ * {@link UpdateSnapshot}, never the mutable {@link Update} of the state thread.
+ */
 public class UpdaterController {
 
     public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
@@ -67,6 +79,7 @@ public class UpdaterController {
     public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
     public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
+    public static final String ACTION_UPDATES_LOADED = "action_updates_loaded";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
 
     private static final String TAG = "UpdaterController";
@@ -74,24 +87,52 @@ public class UpdaterController {
     private static UpdaterController sUpdaterController;
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int CHECKPOINT_INTERVAL_MS = 5000;
 
     private final Context mContext;
-    private final LocalBroadcastManager mBroadcastManager;
+    private final UpdateEventDispatcher mEventDispatcher;
     private final UpdatesDbHelper mUpdatesDbHelper;
+    private final UpdatesDbWriter mUpdatesDbWriter;
+    private final DownloadSessionsDbHelper mDownloadSessionsDbHelper;
+    private final VerifiedFilesDbHelper mVerifiedFilesDbHelper;
     private static MirrorsDbHelper mirrorsDbHelper;
 
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
-
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mStateExecutor = Executors.newSingleThreadExecutor(
+            runnable -> mStateThread = new Thread(runnable, TAG));
+    private volatile Thread mStateThread;
+    private volatile Snapshot mSnapshot = new Snapshot(Collections.emptyMap(),
+            Collections.emptySet(), Collections.emptySet(), Collections.emptyList());
+    private volatile boolean mLoaded;
+
+    // Only accessed from the state thread
+    private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    private final Set<String> mVerifyingUpdates = new HashSet<>();
+    private final Map<String, Future<?>> mVerifications = new HashMap<>();
+    // What the packages looked like when verified, by download ID
+    private Map<String, VerifiedFile> mVerifiedFiles = new HashMap<>();
+    private final DownloadScheduler mScheduler =
+            new DownloadScheduler(Constants.MAX_CONCURRENT_DOWNLOADS);
     private int mActiveDownloads = 0;
-    private Set<String> mVerifyingUpdates = new HashSet<>();
 
-    // Sourceforge variable instances
-    private static Map<String, String> mirror_links;
-    private static Map<Double, String> ranked_mirrors;
-    private static Map<String, String> sorted_mirrors;
-    public static Map<Double, String> sorted_ranked_mirrors;
+    private static final class Snapshot {
+        final Map<String, UpdateSnapshot> mUpdates;
+        final Set<String> mDownloading;
+        final Set<String> mVerifying;
+        final List<String> mQueue;
+
+        Snapshot(Map<String, UpdateSnapshot> updates, Set<String> downloading,
+                Set<String> verifying, List<String> queue) {
+            mUpdates = updates;
+            mDownloading = downloading;
+            mVerifying = verifying;
+            mQueue = queue;
+        }
+    }
 
     public static synchronized UpdaterController getInstance() {
         return sUpdaterController;
@@ -105,76 +146,217 @@ public class UpdaterController {
     }
 
     private UpdaterController(Context context) {
-        mBroadcastManager = LocalBroadcastManager.getInstance(context);
-        mUpdatesDbHelper = new UpdatesDbHelper(context);
-        mirrorsDbHelper = MirrorsDbHelper.getInstance(context);
+        final long start = SystemClock.elapsedRealtime();
+        mEventDispatcher = new UpdateEventDispatcher(this::getUpdate,
+                Constants.UPDATE_EVENTS_WINDOW_MS);
+        // The helpers open their databases lazily, nothing here touches the disk
+        mUpdatesDbHelper = UpdatesDbHelper.getInstance(context);
+        mUpdatesDbWriter = new UpdatesDbWriter(mUpdatesDbHelper);
+        mDownloadSessionsDbHelper = DownloadSessionsDbHelper.getInstance(context);
+        mVerifiedFilesDbHelper = VerifiedFilesDbHelper.getInstance(context);
         mDownloadRoot = Utils.getDownloadPath(context);
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
 
-        Utils.cleanupDownloadsDir(context);
+        Log.d(TAG, "Controller created in " + (SystemClock.elapsedRealtime() - start) +
+                " ms, " + (start - Process.getStartElapsedRealtime()) +
+                " ms after process start");
+        // Queued first, every command is handled once the updates are loaded
+        post(this::hydrate);
+    }
+
+    /**
+     * Queue the given message to the state thread. The snapshot is published
+     * once it's handled.
+     */
+    private void post(Runnable message) {
+        mStateExecutor.execute(() -> {
+            message.run();
+            publishSnapshot();
+        });
+    }
+
+    /**
+     * Handle the given message on the state thread and wait for its result.
+     * Meant for the commands whose result is needed right away, the state
+     * thread never waits for other threads.
+     */
+    private <T> T call(Supplier<T> message) {
+        if (Thread.currentThread() == mStateThread) {
+            return message.get();
+        }
+        try {
+            return mStateExecutor.submit(() -> {
+                T result = message.get();
+                publishSnapshot();
+                return result;
+            }).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the state thread", e);
+        }
+    }
+
+    private void publishSnapshot() {
+        Map<String, UpdateSnapshot> updates = new HashMap<>();
+        Set<String> downloading = new HashSet<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            String downloadId = entry.mUpdate.getDownloadId();
+            // Most messages change a single update, the others keep their snapshot
+            if (entry.mSnapshot == null || !entry.mSnapshot.isSnapshotOf(entry.mUpdate)) {
+                entry.mSnapshot = new UpdateSnapshot(entry.mUpdate);
+            }
+            updates.put(downloadId, entry.mSnapshot);
+            if (entry.mDownloadClient != null) {
+                downloading.add(downloadId);
+            }
+        }
+        mSnapshot = new Snapshot(Collections.unmodifiableMap(updates),
+                Collections.unmodifiableSet(downloading),
+                Collections.unmodifiableSet(new HashSet<>(mVerifyingUpdates)),
+                Collections.unmodifiableList(mScheduler.getQueue()));
+    }
+
+    /**
+     * Load the stored updates. This is the first message handled by the state
+     * thread, the listeners are told once done.
+     */
+    private void hydrate() {
+        final long start = SystemClock.elapsedRealtime();
+        mirrorsDbHelper = MirrorsDbHelper.getInstance(mContext);
+        Utils.cleanupDownloadsDir(mContext);
+        final long cleanupTime = SystemClock.elapsedRealtime();
 
         for (Update update : mUpdatesDbHelper.getUpdates()) {
-            addUpdate(update, false);
+            if (prepareUpdate(update, false)) {
+                mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
+            }
+        }
+        mVerifiedFiles = mVerifiedFilesDbHelper.getVerifiedFiles();
+        checkVerifiedUpdates();
+        publishSnapshot();
+        mLoaded = true;
+
+        final long now = SystemClock.elapsedRealtime();
+        Log.d(TAG, "Loaded " + mDownloads.size() + " updates: cleanup " +
+                (cleanupTime - start) + " ms, database " + (now - cleanupTime) +
+                " ms, ready " + (now - Process.getStartElapsedRealtime()) +
+                " ms after process start");
+        mEventDispatcher.dispatchLoaded();
+    }
+
+    /**
+     * @return true once the stored updates are loaded. Until then the
+     * controller knows no update.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Run the given action on the main thread once the stored updates are
+     * loaded, right away if they already are and this is the main thread.
+     */
+    public void runWhenLoaded(Runnable runnable) {
+        if (mLoaded && Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mStateExecutor.execute(() -> mMainHandler.post(runnable));
         }
     }
 
     private class DownloadEntry {
         final Update mUpdate;
+        // Last published state of mUpdate
+        UpdateSnapshot mSnapshot;
         DownloadClient mDownloadClient;
+        // Used to feed the mirror statistics once the download session ends
+        String mSessionHost;
+        long mSessionStartBytes;
+        long mSessionStartTime;
+        SessionRow mSession;
+        long mLastCheckpoint;
+        // Speed of the previous sessions, used until the current one is measured
+        long mEstimatedSpeed = -1;
+        // Incremented for each download client, late events of the old ones are dropped
+        int mGeneration;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
     }
 
-    private static Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    // Row of a download session, only used on the database thread
+    private static class SessionRow {
+        long mId = -1;
+    }
+
+    /**
+     * @return the entry of the given download if the given client generation
+     * is still the active one, null otherwise
+     */
+    private DownloadEntry getActiveEntry(String downloadId, int generation) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient == null || entry.mGeneration != generation) {
+            Log.d(TAG, "Dropping event of a stale download client of " + downloadId);
+            return null;
+        }
+        return entry;
+    }
+
+    // The notifications are sent from the state thread, publish first so that
+    // the receivers see the change they're notified about
 
     void notifyUpdateChange(String downloadId) {
-        new Thread(() -> {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            Intent intent = new Intent();
-            intent.setAction(ACTION_UPDATE_STATUS);
-            intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-            mBroadcastManager.sendBroadcast(intent);
-        }).start();
+        publishSnapshot();
+        mEventDispatcher.dispatch(ACTION_UPDATE_STATUS, downloadId);
     }
 
-    void notifyUpdateDelete(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_REMOVED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+    void notifyUpdateDelete(Update update) {
+        publishSnapshot();
+        mEventDispatcher.dispatchRemoved(new UpdateSnapshot(update));
     }
 
     void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        publishSnapshot();
+        mEventDispatcher.dispatch(ACTION_DOWNLOAD_PROGRESS, downloadId);
     }
 
     void notifyInstallProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        publishSnapshot();
+        mEventDispatcher.dispatch(ACTION_INSTALL_PROGRESS, downloadId);
     }
 
     void notifyInstallFinished(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_FINISHED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        publishSnapshot();
+        mEventDispatcher.dispatch(ACTION_INSTALL_FINISHED, downloadId);
+    }
+
+    UpdateEventDispatcher getEventDispatcher() {
+        return mEventDispatcher;
+    }
+
+    /**
+     * Register a listener of the changes of the updates.
+     *
+     * @param executor the executor the listener is called on
+     */
+    public void addUpdateListener(UpdateListener listener, Executor executor) {
+        mEventDispatcher.addListener(listener, executor);
+    }
+
+    public void removeUpdateListener(UpdateListener listener) {
+        mEventDispatcher.removeListener(listener);
     }
 
     private void tryReleaseWakelock() {
-        if (!hasActiveDownloads()) {
+        if (mActiveDownloads == 0) {
             mWakeLock.release();
         }
     }
@@ -193,69 +375,216 @@ public class UpdaterController {
         }
         entry.mDownloadClient = null;
         mActiveDownloads--;
+        mScheduler.finished(entry.mUpdate.getDownloadId());
+    }
+
+    private static String getHost(String url) {
+        return url != null ? Uri.parse(url).getHost() : null;
+    }
+
+    private void startDownloadSession(DownloadEntry entry, String url) {
+        File file = entry.mUpdate.getFile();
+        entry.mSessionHost = getHost(url);
+        entry.mSessionStartBytes = file != null && file.exists() ? file.length() : 0;
+        entry.mSessionStartTime = SystemClock.elapsedRealtime();
+        entry.mLastCheckpoint = entry.mSessionStartTime;
+        final SessionRow session = new SessionRow();
+        entry.mSession = session;
+        final String downloadId = entry.mUpdate.getDownloadId();
+        final long startOffset = entry.mSessionStartBytes;
+        final String host = entry.mSessionHost;
+        final String networkType = Utils.getNetworkType(mContext);
+        executeOnDbThread("start the download session of " + downloadId, () ->
+                session.mId = mDownloadSessionsDbHelper.startSession(downloadId, startOffset,
+                        host, networkType));
+    }
+
+    private void checkpointDownloadSession(DownloadEntry entry, long bytesRead, boolean force) {
+        final SessionRow session = entry.mSession;
+        if (session == null) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (!force && now - entry.mLastCheckpoint < CHECKPOINT_INTERVAL_MS) {
+            return;
+        }
+        entry.mLastCheckpoint = now;
+        final long bytes = Math.max(bytesRead - entry.mSessionStartBytes, 0);
+        final long duration = now - entry.mSessionStartTime;
+        // The session was started by an earlier task of the same thread
+        executeOnDbThread("checkpoint the download session of " +
+                entry.mUpdate.getDownloadId(), () -> {
+            if (session.mId >= 0) {
+                mDownloadSessionsDbHelper.checkpointSession(session.mId, bytes, duration);
+            }
+        });
+    }
+
+    private void estimateDownloadSpeed(DownloadEntry entry) {
+        final String downloadId = entry.mUpdate.getDownloadId();
+        final int generation = entry.mGeneration;
+        final File file = entry.mUpdate.getFile();
+        final String networkType = Utils.getNetworkType(mContext);
+        executeOnDbThread("estimate the download speed of " + downloadId, () -> {
+            long speed = mDownloadSessionsDbHelper.getEstimatedSpeed(downloadId, networkType);
+            long downloaded = file != null && file.exists() ? file.length() : 0;
+            post(() -> onDownloadSpeedEstimated(downloadId, generation, speed, downloaded));
+        });
+    }
+
+    private void onDownloadSpeedEstimated(String downloadId, int generation, long speed,
+            long downloaded) {
+        DownloadEntry entry = getActiveEntry(downloadId, generation);
+        if (entry == null) {
+            return;
+        }
+        entry.mEstimatedSpeed = speed;
+        Update update = entry.mUpdate;
+        // Once the download reports its progress, it knows better
+        if (speed > 0 && update.getStatus() == UpdateStatus.STARTING) {
+            update.setSpeed(speed);
+            update.setEta(Math.max(update.getFileSize() - downloaded, 0) / speed);
+            notifyDownloadProgress(downloadId);
+        }
+    }
+
+    private void executeOnDbThread(String what, Runnable task) {
+        try {
+            BackgroundExecutors.get(BackgroundExecutors.Pool.DB).execute(() -> {
+                try {
+                    task.run();
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Could not " + what, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not " + what, e);
+        }
+    }
+
+    private void endDownloadSession(DownloadEntry entry, boolean failed) {
+        File file = entry.mUpdate.getFile();
+        if (file != null) {
+            checkpointDownloadSession(entry, file.length(), true);
+        }
+        entry.mSession = null;
+        String host = entry.mSessionHost != null ? entry.mSessionHost :
+                getHost(entry.mUpdate.getDownloadUrl());
+        if (host != null) {
+            if (failed) {
+                mirrorsDbHelper.recordFailure(host);
+            } else if (entry.mSessionStartTime > 0) {
+                long bytes = entry.mUpdate.getFile().length() - entry.mSessionStartBytes;
+                long duration = SystemClock.elapsedRealtime() - entry.mSessionStartTime;
+                mirrorsDbHelper.recordThroughput(host, bytes, duration);
+            }
+        }
+        entry.mSessionHost = null;
+        entry.mSessionStartTime = 0;
     }
 
-    private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
+    private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId,
+            final int generation) {
         return new DownloadClient.DownloadCallback() {
 
             @Override
             public void onResponse(int statusCode, String url, DownloadClient.Headers headers) {
-                final Update update = mDownloads.get(downloadId).mUpdate;
                 String contentLength = headers.get("Content-Length");
-                if (contentLength != null) {
-                    try {
-                        long size = Long.parseLong(contentLength);
-                        if (update.getFileSize() < size) {
-                            update.setFileSize(size);
+                post(() -> {
+                    DownloadEntry entry = getActiveEntry(downloadId, generation);
+                    if (entry == null) {
+                        return;
+                    }
+                    final Update update = entry.mUpdate;
+                    startDownloadSession(entry, url);
+                    if (contentLength != null) {
+                        try {
+                            long size = Long.parseLong(contentLength);
+                            if (update.getFileSize() < size) {
+                                update.setFileSize(size);
+                            }
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Could not get content-length");
                         }
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Could not get content-length");
                     }
-                }
-                update.setStatus(UpdateStatus.DOWNLOADING);
-                update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
-                notifyUpdateChange(downloadId);
+                    update.setStatus(UpdateStatus.DOWNLOADING);
+                    update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+                    mUpdatesDbWriter.addUpdate(update);
+                    notifyUpdateChange(downloadId);
+                });
             }
 
             @Override
             public void onSuccess(File destination) {
                 Log.d(TAG, "Download complete");
-                Update update = mDownloads.get(downloadId).mUpdate;
-                update.setStatus(UpdateStatus.VERIFYING);
-                removeDownloadClient(mDownloads.get(downloadId));
-                verifyUpdateAsync(downloadId);
-                notifyUpdateChange(downloadId);
-                tryReleaseWakelock();
+                post(() -> {
+                    DownloadEntry entry = getActiveEntry(downloadId, generation);
+                    if (entry == null) {
+                        return;
+                    }
+                    entry.mUpdate.setStatus(UpdateStatus.VERIFYING);
+                    endDownloadSession(entry, false);
+                    removeDownloadClient(entry);
+                    verifyUpdateAsync(downloadId);
+                    notifyUpdateChange(downloadId);
+                    scheduleDownloads();
+                });
             }
 
             @Override
             public void onFailure(boolean cancelled) {
-                Update update = mDownloads.get(downloadId).mUpdate;
                 if (cancelled) {
+                    // Already handled when the download was paused
                     Log.d(TAG, "Download cancelled");
-                    // Already notified
-                } else {
-                    Log.e(TAG, "Download failed");
-                    removeDownloadClient(mDownloads.get(downloadId));
-                    update.setStatus(UpdateStatus.PAUSED_ERROR);
-                    notifyUpdateChange(downloadId);
+                    return;
                 }
-                tryReleaseWakelock();
+                Log.e(TAG, "Download failed");
+                post(() -> {
+                    DownloadEntry entry = getActiveEntry(downloadId, generation);
+                    if (entry == null) {
+                        return;
+                    }
+                    endDownloadSession(entry, true);
+                    removeDownloadClient(entry);
+                    entry.mUpdate.setStatus(UpdateStatus.PAUSED_ERROR);
+                    notifyUpdateChange(downloadId);
+                    scheduleDownloads();
+                });
             }
         };
     }
 
-    private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
+    private DownloadClient.ProgressListener getProgressListener(final String downloadId,
+            final int generation) {
         return new DownloadClient.ProgressListener() {
+            // Used from the download thread, only meaningful changes reach the state thread
+            private long mLastPost = 0;
+            private int mLastPostProgress = -1;
+            // Used from the state thread
             private long mLastUpdate = 0;
             private int mProgress = 0;
 
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta,
                     boolean done) {
-                Update update = mDownloads.get(downloadId).mUpdate;
+                final long now = SystemClock.elapsedRealtime();
+                int progress = contentLength > 0 ? Math.round(bytesRead * 100 / contentLength) : -1;
+                if (!done && progress == mLastPostProgress &&
+                        now - mLastPost < MAX_REPORT_INTERVAL_MS) {
+                    return;
+                }
+                mLastPost = now;
+                mLastPostProgress = progress;
+                post(() -> onProgress(bytesRead, contentLength, speed, eta));
+            }
+
+            private void onProgress(long bytesRead, long contentLength, long speed, long eta) {
+                DownloadEntry entry = getActiveEntry(downloadId, generation);
+                if (entry == null) {
+                    return;
+                }
+                Update update = entry.mUpdate;
+                checkpointDownloadSession(entry, bytesRead, false);
                 if (contentLength <= 0) {
                     if (update.getFileSize() <= 0) {
                         return;
@@ -266,9 +595,13 @@ public class UpdaterController {
                 if (contentLength <= 0) {
                     return;
                 }
+                if (speed <= 0 && entry.mEstimatedSpeed > 0) {
+                    speed = entry.mEstimatedSpeed;
+                    eta = (contentLength - bytesRead) / speed;
+                }
                 final long now = SystemClock.elapsedRealtime();
                 int progress = Math.round(bytesRead * 100 / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
+                if (progress != mProgress || now - mLastUpdate > MAX_REPORT_INTERVAL_MS) {
                     mProgress = progress;
                     mLastUpdate = now;
                     update.setProgress(progress);
@@ -282,40 +615,157 @@ public class UpdaterController {
 
     private void verifyUpdateAsync(final String downloadId) {
         mVerifyingUpdates.add(downloadId);
-        new Thread(() -> {
-            Update update = mDownloads.get(downloadId).mUpdate;
-            File file = update.getFile();
-            if (file.exists()) {
-                file.setReadable(true, false);
-                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                mUpdatesDbHelper.changeUpdateStatus(update);
-                update.setStatus(UpdateStatus.VERIFIED);
-            } else {
-                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                mUpdatesDbHelper.removeUpdate(downloadId);
-                update.setProgress(0);
-                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+        final Update update = mDownloads.get(downloadId).mUpdate;
+        final File file = update.getFile();
+        update.setProgress(0);
+        update.setInstallManifest(null);
+        try {
+            mVerifications.put(downloadId, UpdateVerifier.getInstance().verify(file,
+                    mVerifiedFiles.get(downloadId), new UpdateVerifier.Listener() {
+                        @Override
+                        public void onProgress(int progress) {
+                            post(() -> onVerificationProgress(downloadId, progress));
+                        }
+
+                        @Override
+                        public void onVerified(boolean verified, String error,
+                                VerifiedFile verifiedFile, InstallManifest installManifest) {
+                            if (verified) {
+                                file.setReadable(true, false);
+                            }
+                            post(() -> UpdaterController.this.onVerified(downloadId, verified,
+                                    verifiedFile, installManifest));
+                        }
+
+                        @Override
+                        public void onFailed(String error) {
+                            post(() -> onVerificationFailed(downloadId));
+                        }
+                    }));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not verify " + downloadId, e);
+            onVerificationFailed(downloadId);
+        }
+    }
+
+    private void cancelVerification(String downloadId) {
+        Future<?> verification = mVerifications.remove(downloadId);
+        if (verification != null) {
+            Log.d(TAG, "Cancelling the verification of " + downloadId);
+            verification.cancel(true);
+        }
+        mVerifyingUpdates.remove(downloadId);
+    }
+
+    private void onVerificationProgress(String downloadId, int progress) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || !mVerifyingUpdates.contains(downloadId)) {
+            return;
+        }
+        entry.mUpdate.setProgress(progress);
+        notifyDownloadProgress(downloadId);
+    }
+
+    private void onVerified(String downloadId, boolean verified, VerifiedFile verifiedFile,
+            InstallManifest installManifest) {
+        mVerifications.remove(downloadId);
+        if (!mVerifyingUpdates.remove(downloadId)) {
+            // Cancelled
+            return;
+        }
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return;
+        }
+        Update update = entry.mUpdate;
+        if (verified) {
+            update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+            update.setInstallManifest(installManifest);
+            // The whole row, the manifest is stored along with the status
+            mUpdatesDbWriter.addUpdate(update);
+            update.setStatus(UpdateStatus.VERIFIED);
+            if (verifiedFile != null) {
+                mVerifiedFiles.put(downloadId, verifiedFile);
+                saveVerifiedFileAsync(downloadId, verifiedFile);
             }
-            mVerifyingUpdates.remove(downloadId);
-            notifyUpdateChange(downloadId);
-        }).start();
+        } else {
+            // The package can't be installed, don't keep it around
+            update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+            deleteUpdateAsync(update);
+            update.setProgress(0);
+            update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+        }
+        notifyUpdateChange(downloadId);
+    }
+
+    /**
+     * The package couldn't be verified, but nothing says it's invalid. Keep it
+     * so that the verification can be retried by resuming the download.
+     */
+    private void onVerificationFailed(String downloadId) {
+        mVerifications.remove(downloadId);
+        if (!mVerifyingUpdates.remove(downloadId)) {
+            // Cancelled
+            return;
+        }
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return;
+        }
+        Update update = entry.mUpdate;
+        File file = update.getFile();
+        if (file != null && update.getFileSize() > 0) {
+            update.setProgress(Math.round(file.length() * 100 / update.getFileSize()));
+        }
+        update.setStatus(UpdateStatus.PAUSED_ERROR);
+        notifyUpdateChange(downloadId);
     }
 
-    private boolean verifyPackage(File file) {
+    private void saveVerifiedFileAsync(String downloadId, VerifiedFile verifiedFile) {
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
-            Log.e(TAG, "Verification successful");
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Verification failed", e);
-            if (file.exists()) {
-                file.delete();
-            } else {
-                // The download was probably stopped. Exit silently
-                Log.e(TAG, "Error while verifying the file", e);
+            BackgroundExecutors.get(BackgroundExecutors.Pool.DB).execute(() -> {
+                try {
+                    mVerifiedFilesDbHelper.putVerifiedFile(downloadId, verifiedFile);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Could not save the verified file of " + downloadId, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not save the verified file of " + downloadId, e);
+        }
+    }
+
+    /**
+     * Make sure the verified packages weren't touched since they were verified.
+     * Comparing what the file system says about them is enough for the ones
+     * that weren't. The others are hashed and only verified again from scratch
+     * if their content changed. They can't be installed until then.
+     */
+    private void checkVerifiedUpdates() {
+        final long start = SystemClock.elapsedRealtime();
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update update = entry.mUpdate;
+            String downloadId = update.getDownloadId();
+            if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
+                continue;
             }
-            return false;
+            VerifiedFile verifiedFile = mVerifiedFiles.get(downloadId);
+            try {
+                if (verifiedFile != null && verifiedFile.isSameFile(update.getFile(),
+                        FileIdentity.of(update.getFile()))) {
+                    continue;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not check " + downloadId, e);
+            }
+            Log.d(TAG, downloadId + " may have changed since it was verified");
+            // Only in memory, the package is checked again at every start until done
+            update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+            update.setStatus(UpdateStatus.VERIFYING);
+            verifyUpdateAsync(downloadId);
         }
+        Log.d(TAG, "Checked the verified updates in " +
+                (SystemClock.elapsedRealtime() - start) + " ms");
     }
 
     private boolean fixUpdateStatus(Update update) {
@@ -337,15 +787,26 @@ public class UpdaterController {
     }
 
     public void setUpdatesNotAvailableOnline(List<String> downloadIds) {
-        for (String downloadId : downloadIds) {
-            DownloadEntry update = mDownloads.get(downloadId);
-            if (update != null) {
-                update.mUpdate.setAvailableOnline(false);
+        final List<String> ids = new ArrayList<>(downloadIds);
+        post(() -> {
+            for (String downloadId : ids) {
+                DownloadEntry update = mDownloads.get(downloadId);
+                if (update != null) {
+                    update.mUpdate.setAvailableOnline(false);
+                }
             }
-        }
+        });
     }
 
     public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
+        final List<String> ids = new ArrayList<>(downloadIds);
+        call(() -> {
+            handleUpdatesAvailableOnline(ids, purgeList);
+            return null;
+        });
+    }
+
+    private void handleUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
             boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
@@ -357,14 +818,16 @@ public class UpdaterController {
         }
         for (String downloadId : toRemove) {
             Log.d(TAG, downloadId + " no longer available online, removing");
-            mDownloads.remove(downloadId);
-            notifyUpdateDelete(downloadId);
+            mScheduler.cancel(downloadId);
+            cancelVerification(downloadId);
+            notifyUpdateDelete(mDownloads.remove(downloadId).mUpdate);
             mirrorsDbHelper.delUpdate(downloadId);
+            MirrorRegistry.getInstance(mContext).removeMirrors(downloadId);
         }
     }
 
     public boolean addUpdate(UpdateInfo update) {
-        return addUpdate(update, true);
+        return call(() -> addUpdate(update, true));
     }
 
     private boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
@@ -373,16 +836,40 @@ public class UpdaterController {
             Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
             Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
             updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
-            if (mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()) != null) {
-                updateAdded.setDownloadUrl(mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
-                Log.d(TAG, "Using previous mirror :" + mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
-            } else {
+            if (!updateInfo.getMirrors().isEmpty()) {
+                updateAdded.setMirrors(updateInfo.getMirrors());
+            }
+            String mirrorUrl = mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId());
+            if (mirrorUrl != null) {
+                updateAdded.setDownloadUrl(mirrorUrl);
+                Log.d(TAG, "Using previous mirror :" + mirrorUrl);
+            } else if (!assignCatalogMirror(updateAdded)) {
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
                 Log.d(TAG, "Using default server url :" + updateInfo.getDownloadUrl());
             }
+            if (availableOnline) {
+                prerankMirrors(updateInfo);
+            }
             return false;
         }
         Update update = new Update(updateInfo);
+        if (!prepareUpdate(update, availableOnline)) {
+            return false;
+        }
+        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
+        if (availableOnline) {
+            prerankMirrors(updateInfo);
+        }
+        return true;
+    }
+
+    /**
+     * Restore the status and the mirror of an update about to be added. Only
+     * the update itself is modified, so this can run on any thread.
+     *
+     * @return false if the update is invalid and was deleted
+     */
+    private boolean prepareUpdate(Update update, boolean availableOnline) {
         if (!fixUpdateStatus(update) && !availableOnline) {
             update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
             deleteUpdateAsync(update);
@@ -390,224 +877,386 @@ public class UpdaterController {
             return false;
         }
         update.setAvailableOnline(availableOnline);
-        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
-        if (!mirrorsDbHelper.isUpdateExists(updateInfo.getDownloadId())) {
-            mirrorsDbHelper.setUpdate(updateInfo.getDownloadId());
+        if (!mirrorsDbHelper.isUpdateExists(update.getDownloadId())) {
+            mirrorsDbHelper.setUpdate(update.getDownloadId());
             Log.d(TAG, "Adding new update to mirrors database: " + update.getDownloadId());
+            assignCatalogMirror(update);
         } else {
             // Set previous mirror url if update already exists in mirrorsDB
-            Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
-            if (mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()) != null) {
-                updateAdded.setDownloadUrl(mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
-                Log.d(TAG, "Setting previous mirror :" + mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
+            String mirrorUrl = mirrorsDbHelper.getMirrorUrl(update.getDownloadId());
+            if (mirrorUrl != null) {
+                update.setDownloadUrl(mirrorUrl);
+                Log.d(TAG, "Setting previous mirror :" + mirrorUrl);
+            } else {
+                assignCatalogMirror(update);
             }
         }
         return true;
     }
 
+    /**
+     * Pick the mirror of a new download among the ones listed in the catalog,
+     * following the weights set by the server. The choice is remembered so
+     * that the download keeps using the same mirror.
+     *
+     * @return true if a mirror was assigned
+     */
+    private boolean assignCatalogMirror(Update update) {
+        if (update.getMirrors().isEmpty()) {
+            return false;
+        }
+        UpdateMirror mirror = MirrorRegistry.getInstance(mContext).pickMirror(update.getMirrors());
+        if (mirror == null) {
+            return false;
+        }
+        update.setDownloadUrl(mirror.getUrl());
+        mirrorsDbHelper.setMirrorUrl(mirror.getUrl(), update.getDownloadId());
+        mirrorsDbHelper.setMirrorName(mirror.getName(), update.getDownloadId());
+        Log.d(TAG, "Assigned mirror " + mirror.getName() + " to " + update.getDownloadId());
+        return true;
+    }
+
     public static void setMirror(UpdateInfo updateInfo, UpdatesActivity updatesActivity, String mirror) {
-        if (mDownloads.containsKey(updateInfo.getDownloadId())) {
-            Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
-            // Set default url sent by server if failed to get mirror
-            String mirrorUrl = updateInfo.getDownloadUrl();
-            String mirrorSnack = updatesActivity.getString(R.string.snack_set_mirror, mirror);
-
-            if (Utils.getRankSortSetting(updatesActivity)) {
-                if (!sorted_mirrors.isEmpty()) {
-                    for (Map.Entry<String, String> sortedMirrors : sorted_mirrors.entrySet()) {
-                        if (mirror.equals(sortedMirrors.getKey())) {
-                            mirrorUrl = sortedMirrors.getValue();
-                            updatesActivity.showSnackbarString(mirrorSnack, Snackbar.LENGTH_SHORT);
-                            mirrorsDbHelper.setMirrorUrl(sortedMirrors.getValue(), updateInfo.getDownloadId());
-                            break;
-                        }
-                    }
-                }
-            } else {
-                if (!mirror_links.isEmpty()) {
-                    for (Map.Entry<String, String> mirrors : mirror_links.entrySet()) {
-                        if (mirror.equals(mirrors.getKey())) {
-                            mirrorUrl = mirrors.getValue();
-                            updatesActivity.showSnackbarString(mirrorSnack, Snackbar.LENGTH_SHORT);
-                            mirrorsDbHelper.setMirrorUrl(mirrors.getValue(), updateInfo.getDownloadId());
-                            break;
-                        }
-                    }
-                }
+        UpdaterController controller = getInstance();
+        if (controller == null || controller.getUpdate(updateInfo.getDownloadId()) == null) {
+            return;
+        }
+        // Set default url sent by server if failed to get mirror
+        String mirrorUrl = updateInfo.getDownloadUrl();
+        String mirrorSnack = updatesActivity.getString(R.string.snack_set_mirror, mirror);
+
+        MirrorRegistry.Mirror selected = MirrorRegistry.getInstance(updatesActivity)
+                .getMirror(updateInfo.getDownloadId(), mirror);
+        if (selected != null) {
+            mirrorUrl = selected.getUrl();
+            updatesActivity.showSnackbarString(mirrorSnack, Snackbar.LENGTH_SHORT);
+        }
+
+        final String url = mirrorUrl;
+        final boolean remember = selected != null;
+        controller.call(() -> {
+            DownloadEntry entry = controller.mDownloads.get(updateInfo.getDownloadId());
+            if (entry == null) {
+                return null;
             }
+            if (remember) {
+                mirrorsDbHelper.setMirrorUrl(url, updateInfo.getDownloadId());
+            }
+            entry.mUpdate.setDownloadUrl(url);
+            Log.d(TAG, "Mirror for: " + updateInfo.getName() + " set to " + url);
+            return null;
+        });
+    }
 
-            updateAdded.setDownloadUrl(mirrorUrl);
-            Log.d(TAG, "Mirror for: " + updateInfo.getName() + " set to " + mirrorsDbHelper.getMirrorUrl(updateInfo.getDownloadId()));
+    private static Map<String, String> getArrowMirrorLinks(UpdateInfo update) {
+        int mirrorCount = 1;
+        String mirrorLink;
+        Map<String, String> mirror_links = new LinkedHashMap<>();
+
+        // Mirrors listed by the server win over the ones we can guess
+        if (!update.getMirrors().isEmpty()) {
+            for (UpdateMirror mirror : update.getMirrors()) {
+                mirror_links.put(mirror.getName(), mirror.getUrl());
+            }
+            return mirror_links;
         }
+
+        String defaultMirrorUrl = update.getDownloadUrl();
+
+        for (String mirror:
+             Constants.arrowMirrors) {
+            mirrorLink = defaultMirrorUrl.replaceFirst("mirror[0-9]", "mirror" + mirrorCount);
+            mirror_links.put(mirror, mirrorLink);
+            mirrorCount++;
+        }
+        return mirror_links;
     }
 
-    private static Map<String, String> sortMirrors(Map<Double, String> ranked_mirrors) {
-        sorted_ranked_mirrors = new TreeMap<>(ranked_mirrors);
-        for (Map.Entry<Double, String> rank_links : sorted_ranked_mirrors.entrySet()) {
-            for (Map.Entry<String, String> mirror_links : mirror_links.entrySet()) {
-                if (rank_links.getValue().equals(mirror_links.getKey())) {
-                    sorted_mirrors.put(rank_links.getValue(), mirror_links.getValue());
-                    Log.d(TAG, "sorted mirrors list: " + rank_links.getValue());
-                }
-            }
+    /**
+     * @return the arrow mirrors followed by the known SourceForge mirrors
+     */
+    private static Map<String, String> getMirrorLinks(Context context, UpdateInfo update) {
+        Map<String, String> mirror_links = getArrowMirrorLinks(update);
+        mirror_links.putAll(SourceForgeMirrors.getInstance(context).getMirrorLinks(update));
+        return mirror_links;
+    }
+
+    /**
+     * Get the mirrors of the given update without blocking. The mirrors are
+     * sorted by rank if they were ranked, in their default order otherwise.
+     */
+    public static Map<String, String> arrowMirrors(Context context, UpdateInfo update,
+            Boolean rankSort) {
+        Map<String, String> mirror_links = getMirrorLinks(context, update);
+        MirrorRegistry registry = MirrorRegistry.getInstance(context);
+        registry.setMirrors(update.getDownloadId(), mirror_links);
+        if (!rankSort) {
+            return mirror_links;
+        }
+
+        Map<String, String> sorted_mirrors = new LinkedHashMap<>();
+        for (MirrorRegistry.Mirror mirror : registry.getMirrors(update.getDownloadId())) {
+            sorted_mirrors.put(mirror.getName(), mirror.getUrl());
+            Log.d(TAG, "sorted mirrors list: " + mirror.getName());
         }
         return sorted_mirrors;
     }
 
-    private static Map<String, String> cookRankMirrorsData(Map<String, String> rank_links) {
-        ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private void prerankMirrors(UpdateInfo update) {
+        refreshSourceForgeMirrors(mContext, update, null);
+        if (!Utils.getRankSortSetting(mContext)) {
+            return;
+        }
+        MirrorRegistry registry = MirrorRegistry.getInstance(mContext);
+        if (registry.isRanked(update.getDownloadId())) {
+            return;
+        }
+        registry.setMirrors(update.getDownloadId(), getMirrorLinks(mContext, update));
+        if (registry.rankAsync(update.getDownloadId(), null)) {
+            Log.d(TAG, "Ranking the mirrors of " + update.getDownloadId() + " in background");
+        }
+    }
 
-        for (Map.Entry<String, String> rlinks : rank_links.entrySet()) {
-            String rank_url = rlinks.getValue();
-            String rank_name = rlinks.getKey();
-            RankMirrors rm = new RankMirrors(rank_url, rank_name);
-            mExecutor.execute(rm);
+    /**
+     * Fetch the SourceForge mirrors in background if the cached ones are stale.
+     * Once fetched, they join the mirrors of the update and are ranked with them.
+     *
+     * @param onRefreshed called from a background thread if new mirrors were
+     *                    found, can be null
+     * @return true if the mirrors are being fetched
+     */
+    public static boolean refreshSourceForgeMirrors(Context context, UpdateInfo update,
+            Runnable onRefreshed) {
+        SourceForgeMirrors sourceForgeMirrors = SourceForgeMirrors.getInstance(context);
+        if (!sourceForgeMirrors.isStale()) {
+            return false;
         }
+        return sourceForgeMirrors.refreshAsync(update, () -> {
+            MirrorRegistry registry = MirrorRegistry.getInstance(context);
+            registry.setMirrors(update.getDownloadId(), getMirrorLinks(context, update));
+            if (Utils.getRankSortSetting(context)) {
+                registry.rankAsync(update.getDownloadId(), onRefreshed);
+            } else if (onRefreshed != null) {
+                onRefreshed.run();
+            }
+        });
+    }
 
-        mExecutor.shutdown();
-        try {
-            mExecutor.awaitTermination(30, TimeUnit.SECONDS);
-            return sortMirrors(ranked_mirrors);
-        } catch (InterruptedException e) {
-            Log.d(TAG, "Executor interrupted!", e);
+    private List<String> getRaceMirrorUrls(UpdateInfo update) {
+        if (!Utils.getRaceMirrorsSetting(mContext)) {
             return null;
         }
+        MirrorRegistry registry = MirrorRegistry.getInstance(mContext);
+        if (registry.getMirrors(update.getDownloadId()).isEmpty()) {
+            registry.setMirrors(update.getDownloadId(), getMirrorLinks(mContext, update));
+        }
+        // The mirror picked by the user always takes part in the race
+        List<String> urls = new ArrayList<>();
+        urls.add(update.getDownloadUrl());
+        for (MirrorRegistry.Mirror mirror : registry.getMirrors(update.getDownloadId())) {
+            if (urls.size() >= Constants.MIRROR_RACE_SIZE) {
+                break;
+            }
+            if (!urls.contains(mirror.getUrl())) {
+                urls.add(mirror.getUrl());
+            }
+        }
+        return urls;
     }
 
-    private static class RankMirrors implements Runnable {
-        private final String rank_url;
-        private final String rank_name;
-
-        RankMirrors(String rank_url, String rank_name) {
-            this.rank_url = rank_url;
-            this.rank_name = rank_name;
-        }
+    private DownloadClient.MirrorRaceListener getMirrorRaceListener(final String downloadId,
+            final int generation) {
+        return new DownloadClient.MirrorRaceListener() {
+            @Override
+            public void onMirrorWon(String url, long firstByteTime, long bytesRead,
+                    long duration) {
+                // Written on the database thread
+                String host = getHost(url);
+                if (host != null) {
+                    mirrorsDbHelper.recordFirstByteTime(host, firstByteTime);
+                    mirrorsDbHelper.recordThroughput(host, bytesRead, duration);
+                }
 
-        @Override
-        public void run() {
-            try {
-                String[] pingCmd = {"ping", "-c 5", rank_url};
-                String pingOutput;
-                double pingResult;
-                Runtime mRuntime = Runtime.getRuntime();
-                Process mProcess = mRuntime.exec(pingCmd);
-                BufferedReader in = new BufferedReader(new InputStreamReader(mProcess.getInputStream()));
-                pingOutput = in.readLine();
-
-                while (pingOutput != null) {
-                    if (pingOutput.contains("rtt")) {
-                        pingResult = Double.parseDouble(pingOutput.substring(pingOutput.lastIndexOf("/") + 1,
-                                                                             pingOutput.lastIndexOf("ms")));
-                        if (pingResult != 0)
-                            ranked_mirrors.put(pingResult, rank_name);
-                        Log.d(TAG, "mdev of mirror " + rank_name + " " + pingResult);
+                post(() -> {
+                    // A late race of a cancelled client must not redirect the current one
+                    DownloadEntry entry = getActiveEntry(downloadId, generation);
+                    if (entry == null) {
+                        return;
                     }
-                    pingOutput = in.readLine();
+                    entry.mUpdate.setDownloadUrl(url);
+                    mirrorsDbHelper.setMirrorUrl(url, downloadId);
+                    for (MirrorRegistry.Mirror mirror :
+                            MirrorRegistry.getInstance(mContext).getMirrors(downloadId)) {
+                        if (mirror.getUrl().equals(url)) {
+                            mirrorsDbHelper.setMirrorName(mirror.getName(), downloadId);
+                            break;
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onMirrorFailed(String url) {
+                String host = getHost(url);
+                if (host != null) {
+                    mirrorsDbHelper.recordFailure(host);
                 }
-                in.close();
-            } catch (IOException e) {
-                Log.d(TAG, "Failed to rank mirror " + rank_name, e);
             }
-        }
+        };
     }
 
-    public static Map<String, String> arrowMirrors(UpdateInfo update, Boolean rankSort) {
-        int mirrorCount = 1;
-        String mirrorLink;
-        mirror_links = new LinkedHashMap<>();
-        ranked_mirrors = new LinkedHashMap<>();
-        sorted_mirrors = new LinkedHashMap<>();
-        Map<String, String> rank_links = new LinkedHashMap<>();
-        String defaultMirrorUrl = update.getDownloadUrl();
+    /**
+     * Queue a download requested by the user. It starts right away if the
+     * number of running downloads allows it.
+     */
+    public void startDownload(String downloadId) {
+        startDownload(downloadId, true);
+    }
 
-        for (String mirror:
-             Constants.arrowMirrors) {
-            mirrorLink = defaultMirrorUrl.replaceFirst("mirror[0-9]", "mirror" + mirrorCount);
-            mirror_links.put(mirror, mirrorLink);
-            rank_links.put(mirror, mirrorLink.split("https://")[1].split("/download")[0]);
-            mirrorCount++;
+    /**
+     * Queue a download. It starts right away if the number of running
+     * downloads allows it, or if it can take the place of a running download
+     * with a lower priority.
+     *
+     * @param userInitiated whether the user asked for the download, background
+     *                      downloads go last and can be preempted
+     */
+    public void startDownload(String downloadId, boolean userInitiated) {
+        post(() -> handleQueueDownload(downloadId, userInitiated, false));
+    }
+
+    /**
+     * Change the number of downloads allowed to run at the same time. Running
+     * downloads are never stopped because of a lower limit. The limit can't be
+     * raised above {@link Constants#MAX_CONCURRENT_DOWNLOADS}, the download
+     * pool only has threads for that many.
+     */
+    public void setMaxConcurrentDownloads(int maxConcurrent) {
+        post(() -> {
+            mScheduler.setMaxConcurrent(
+                    Math.min(maxConcurrent, Constants.MAX_CONCURRENT_DOWNLOADS));
+            scheduleDownloads();
+        });
+    }
+
+    private boolean handleQueueDownload(String downloadId, boolean userInitiated,
+            boolean resume) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null) {
+            return false;
         }
+        if (mScheduler.enqueue(downloadId, entry.mUpdate.getTimestamp(), userInitiated,
+                resume) == null) {
+            return false;
+        }
+        scheduleDownloads();
+        if (mScheduler.isQueued(downloadId)) {
+            Log.d(TAG, "Queued " + downloadId + ", " + mActiveDownloads + " downloads running");
+            entry.mUpdate.setStatus(UpdateStatus.QUEUED);
+            notifyUpdateChange(downloadId);
+        }
+        return true;
+    }
 
-        if (rankSort) {
-            return cookRankMirrorsData(rank_links);
-        } else {
-            return mirror_links;
+    /**
+     * Start the queued downloads as long as slots are free, stopping the
+     * running downloads with a lower priority if needed.
+     */
+    private void scheduleDownloads() {
+        while (true) {
+            DownloadScheduler.Request victim = mScheduler.getPreemptionVictim();
+            if (victim != null) {
+                preemptDownload(victim);
+            }
+            DownloadScheduler.Request request = mScheduler.poll();
+            if (request == null) {
+                break;
+            }
+            String downloadId = request.getDownloadId();
+            if (request.isResume()) {
+                handleResumeDownload(downloadId);
+            } else {
+                handleStartDownload(downloadId);
+            }
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null || entry.mDownloadClient == null) {
+                // Failed or nothing to download, give the slot back
+                mScheduler.finished(downloadId);
+            }
         }
+        tryReleaseWakelock();
     }
 
-//    public static Map<String, String> sourceforgeMirrors(UpdateInfo update, Boolean rankSort) {
-//        mirror_links = new LinkedHashMap<>();
-//        ranked_mirrors = new LinkedHashMap<>();
-//        sorted_mirrors = new LinkedHashMap<>();
-//        Map<String, String> rank_links = new LinkedHashMap<>();
-//        String projectname = Constants.SF_PROJECT_NAME;
-//        String project_root_path = Constants.SF_PROJECT_ROOT_PATH_NAME + update.getVersion().split("v", 2)[1];
-//        String current_device = SystemProperties.get(Constants.PROP_DEVICE);
-//        String device_file = update.getName();
-//        String filepath = "/" + project_root_path + "/" + current_device + "/" + device_file;
-//        String mirrorsUrl = "https://sourceforge.net/settings/mirror_choices?projectname=" + projectname + "&filename=" + filepath;
-//        Log.d(TAG, "mirrors URL: " + mirrorsUrl);
-//
-//        Thread mirrorFetch = new Thread(() -> {
-//        try {
-//            Document doc = Jsoup.connect(mirrorsUrl).get();
-//            Elements links = doc.select("#mirrorList li");
-//
-//            for (Element link : links) {
-//                String mirrorName = link.attr("id");
-//                String mirrorPlace = link.text();
-//                if (!mirrorName.equals("autoselect")) {
-//                    mirrorPlace = mirrorPlace.substring(mirrorPlace.lastIndexOf("(") + 1,
-//                                                        mirrorPlace.lastIndexOf(")"))
-//                                                        .split(",", 2)[0]
-//                                                        .trim();
-//                    mirror_links.put(mirrorPlace, "https://" + mirrorName + ".dl.sourceforge.net/project/" + projectname + filepath);
-//                    rank_links.put(mirrorPlace, mirrorName + ".dl.sourceforge.net");
-//                    Log.d(TAG, "mirror: " + mirrorName + " country name: " + mirrorPlace);
-//                }
-//            }
-//
-//        } catch (IOException e) {
-//            Log.d(TAG, "Failed to fetch sourceforge mirrors!", e);
-//        }
-//        });
-//
-//        try {
-//            mirrorFetch.start();
-//            mirrorFetch.join();
-//
-//            if (rankSort) {
-//                return cookRankMirrorsData(rank_links);
-//            } else {
-//                return mirror_links;
-//            }
-//
-//        } catch (InterruptedException e) {
-//            Log.d(TAG, "Mirror fetch thread interrupted!", e);
-//            return null;
-//        }
-//    }
-
-    public boolean startDownload(String downloadId) {
+    private void preemptDownload(DownloadScheduler.Request request) {
+        String downloadId = request.getDownloadId();
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient == null) {
+            mScheduler.finished(downloadId);
+            return;
+        }
+        Log.d(TAG, "Preempting " + downloadId);
+        entry.mDownloadClient.cancel();
+        endDownloadSession(entry, false);
+        removeDownloadClient(entry);
+        // Continue the partial file once it's its turn again
+        File file = entry.mUpdate.getFile();
+        mScheduler.requeue(request, file != null && file.exists());
+        entry.mUpdate.setStatus(UpdateStatus.QUEUED);
+        entry.mUpdate.setEta(0);
+        entry.mUpdate.setSpeed(0);
+        notifyUpdateChange(downloadId);
+    }
+
+    private boolean handleStartDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        if (!mDownloads.containsKey(downloadId) ||
+                mDownloads.get(downloadId).mDownloadClient != null) {
             return false;
         }
         Update update = mDownloads.get(downloadId).mUpdate;
-        File destination = new File(mDownloadRoot, update.getName());
+        File destination = Utils.getDownloadFile(mDownloadRoot, update);
+        update.setFile(destination);
+        update.setInstallManifest(null);
         if (destination.exists()) {
-            destination = Utils.appendSequentialNumber(destination);
-            Log.d(TAG, "Changing name with " + destination.getName());
+            long length = destination.length();
+            if (length > 0 && length <= update.getFileSize()) {
+                // Left by an earlier download of the same package, or the
+                // whole package: continue it or verify it
+                Log.d(TAG, "Reusing the " + length + " bytes of " + destination);
+                update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+                mUpdatesDbWriter.addUpdate(update);
+                return handleResumeDownload(downloadId);
+            }
+            Log.d(TAG, "Discarding " + destination);
+            if (!destination.delete()) {
+                Log.e(TAG, "Could not delete " + destination);
+                update.setStatus(UpdateStatus.PAUSED_ERROR);
+                notifyUpdateChange(downloadId);
+                return false;
+            }
         }
-        update.setFile(destination);
+        File directory = destination.getParentFile();
+        if (!directory.isDirectory()) {
+            if (!directory.mkdirs()) {
+                Log.e(TAG, "Could not create " + directory);
+                update.setStatus(UpdateStatus.PAUSED_ERROR);
+                notifyUpdateChange(downloadId);
+                return false;
+            }
+            // The verified package is made readable by the installers
+            directory.setExecutable(true, false);
+        }
+        final int generation = ++mDownloads.get(downloadId).mGeneration;
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
                     .setUrl(update.getDownloadUrl())
                     .setDestination(update.getFile())
-                    .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
+                    .setDownloadCallback(getDownloadCallback(downloadId, generation))
+                    .setProgressListener(getProgressListener(downloadId, generation))
                     .setUseDuplicateLinks(true)
+                    .setRaceMirrors(getRaceMirrorUrls(update))
+                    .setMirrorRaceListener(getMirrorRaceListener(downloadId, generation))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -616,6 +1265,8 @@ public class UpdaterController {
             return false;
         }
         addDownloadClient(mDownloads.get(downloadId), downloadClient);
+        // Show the ETA of the previous sessions as soon as it's known
+        estimateDownloadSpeed(mDownloads.get(downloadId));
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
@@ -623,9 +1274,18 @@ public class UpdaterController {
         return true;
     }
 
-    public boolean resumeDownload(String downloadId) {
+    /**
+     * Queue the resumption of a download requested by the user. It resumes
+     * right away if the number of running downloads allows it.
+     */
+    public void resumeDownload(String downloadId) {
+        post(() -> handleQueueDownload(downloadId, true, true));
+    }
+
+    private boolean handleResumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        if (!mDownloads.containsKey(downloadId) ||
+                mDownloads.get(downloadId).mDownloadClient != null) {
             return false;
         }
         Update update = mDownloads.get(downloadId).mUpdate;
@@ -642,13 +1302,14 @@ public class UpdaterController {
             verifyUpdateAsync(downloadId);
             notifyUpdateChange(downloadId);
         } else {
+            final int generation = ++mDownloads.get(downloadId).mGeneration;
             DownloadClient downloadClient;
             try {
                 downloadClient = new DownloadClient.Builder()
                         .setUrl(update.getDownloadUrl())
                         .setDestination(update.getFile())
-                        .setDownloadCallback(getDownloadCallback(downloadId))
-                        .setProgressListener(getProgressListener(downloadId))
+                        .setDownloadCallback(getDownloadCallback(downloadId, generation))
+                        .setProgressListener(getProgressListener(downloadId, generation))
                         .setUseDuplicateLinks(true)
                         .build();
             } catch (IOException exception) {
@@ -658,6 +1319,8 @@ public class UpdaterController {
                 return false;
             }
             addDownloadClient(mDownloads.get(downloadId), downloadClient);
+            // Show the ETA of the previous sessions as soon as it's known
+            estimateDownloadSpeed(mDownloads.get(downloadId));
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
@@ -666,35 +1329,77 @@ public class UpdaterController {
         return true;
     }
 
-    public boolean pauseDownload(String downloadId) {
+    public void pauseDownload(String downloadId) {
+        post(() -> handlePauseDownload(downloadId));
+    }
+
+    private boolean handlePauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return false;
+        }
+        DownloadScheduler.Request queued = mScheduler.cancel(downloadId);
+        if (queued != null) {
+            // Never started, or stopped to make room for another download
+            entry.mUpdate.setStatus(queued.isResume() ? UpdateStatus.PAUSED :
+                    UpdateStatus.UNKNOWN);
+            notifyUpdateChange(downloadId);
+            return true;
+        }
+        if (entry.mDownloadClient == null) {
             return false;
         }
 
-        DownloadEntry entry = mDownloads.get(downloadId);
         entry.mDownloadClient.cancel();
+        endDownloadSession(entry, false);
         removeDownloadClient(entry);
         entry.mUpdate.setStatus(UpdateStatus.PAUSED);
         entry.mUpdate.setEta(0);
         entry.mUpdate.setSpeed(0);
         notifyUpdateChange(downloadId);
+        scheduleDownloads();
         return true;
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
-            File file = update.getFile();
-            if (file.exists() && !file.delete()) {
-                Log.e(TAG, "Could not delete " + file.getAbsolutePath());
-            }
-            mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+        mUpdatesDbWriter.removeUpdate(update.getDownloadId());
+        final File file = update.getFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            BackgroundExecutors.get(BackgroundExecutors.Pool.IO).execute(() -> {
+                if (!Utils.deleteDownloadFile(mDownloadRoot, file)) {
+                    Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not delete " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Write the pending changes to the database without waiting for them to be
+     * batched with the following ones.
+     *
+     * @param callback run on the main thread once the changes are written, or
+     *        failed to be. Can be null
+     */
+    public void flushDatabase(Runnable callback) {
+        mUpdatesDbWriter.flush(callback != null ? () -> mMainHandler.post(callback) : null);
+    }
+
+    public void deleteUpdate(String downloadId) {
+        post(() -> handleDeleteUpdate(downloadId));
     }
 
-    public boolean deleteUpdate(String downloadId) {
+    private boolean handleDeleteUpdate(String downloadId) {
         Log.d(TAG, "Cancelling " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        mScheduler.cancel(downloadId);
+        cancelVerification(downloadId);
+        if (!mDownloads.containsKey(downloadId) ||
+                mDownloads.get(downloadId).mDownloadClient != null) {
             return false;
         }
         Update update = mDownloads.get(downloadId).mUpdate;
@@ -706,8 +1411,9 @@ public class UpdaterController {
         if (!update.getAvailableOnline()) {
             Log.d(TAG, "Download no longer available online, removing");
             mDownloads.remove(downloadId);
-            notifyUpdateDelete(downloadId);
+            notifyUpdateDelete(update);
             mirrorsDbHelper.delUpdate(downloadId);
+            MirrorRegistry.getInstance(mContext).removeMirrors(downloadId);
         } else {
             notifyUpdateChange(downloadId);
         }
@@ -716,42 +1422,85 @@ public class UpdaterController {
     }
 
     public Set<String> getIds() {
-        return mDownloads.keySet();
+        return mSnapshot.mUpdates.keySet();
     }
 
     public List<UpdateInfo> getUpdates() {
-        List<UpdateInfo> updates = new ArrayList<>();
-        for (DownloadEntry entry : mDownloads.values()) {
-            updates.add(entry.mUpdate);
-        }
-        return updates;
+        return new ArrayList<>(mSnapshot.mUpdates.values());
     }
 
+    /**
+     * @return an immutable copy of the given update as of the last change
+     */
     public UpdateInfo getUpdate(String downloadId) {
-        DownloadEntry entry = mDownloads.get(downloadId);
-        return entry != null ? entry.mUpdate : null;
+        return mSnapshot.mUpdates.get(downloadId);
     }
 
-    Update getActualUpdate(String downloadId) {
-        DownloadEntry entry = mDownloads.get(downloadId);
-        return entry != null ? entry.mUpdate : null;
+    /**
+     * Change the status of an update being installed and notify it. The
+     * install progress is reset once the installation is over.
+     */
+    void setInstallStatus(String downloadId, UpdateStatus status) {
+        post(() -> {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null) {
+                return;
+            }
+            Update update = entry.mUpdate;
+            update.setStatus(status);
+            if (status != UpdateStatus.INSTALLING &&
+                    status != UpdateStatus.INSTALLATION_SUSPENDED) {
+                update.setInstallProgress(0);
+                update.setFinalizing(false);
+            }
+            notifyUpdateChange(downloadId);
+            if (status == UpdateStatus.INSTALLED) {
+                notifyInstallFinished(downloadId);
+            }
+        });
+    }
+
+    void setInstallProgress(String downloadId, int progress, boolean finalizing) {
+        post(() -> {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null) {
+                return;
+            }
+            entry.mUpdate.setInstallProgress(progress);
+            entry.mUpdate.setFinalizing(finalizing);
+            notifyInstallProgress(downloadId);
+        });
     }
 
     public boolean isDownloading(String downloadId) {
-        return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+        return mSnapshot.mDownloading.contains(downloadId);
     }
 
+    /**
+     * @return true if a download is running or waiting for its turn
+     */
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        Snapshot snapshot = mSnapshot;
+        return !snapshot.mDownloading.isEmpty() || !snapshot.mQueue.isEmpty();
+    }
+
+    public boolean isQueued(String downloadId) {
+        return mSnapshot.mQueue.contains(downloadId);
+    }
+
+    /**
+     * @return the downloads waiting for their turn, in the order they will start
+     */
+    public List<String> getDownloadQueue() {
+        return mSnapshot.mQueue;
     }
 
     public boolean isVerifyingUpdate() {
-        return mVerifyingUpdates.size() > 0;
+        return !mSnapshot.mVerifying.isEmpty();
     }
 
     public boolean isVerifyingUpdate(String downloadId) {
-        return mVerifyingUpdates.contains(downloadId);
+        return mSnapshot.mVerifying.contains(downloadId);
     }
 
     public boolean isInstallingUpdate() {
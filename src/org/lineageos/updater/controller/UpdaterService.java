@@ -19,10 +19,8 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Bundle;
@@ -31,12 +29,13 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdaterReceiver;
 import org.lineageos.updater.UpdatesActivity;
+import org.lineageos.updater.misc.BackgroundExecutors;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.StringGenerator;
@@ -72,7 +71,7 @@ public class UpdaterService extends Service {
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
 
-    private BroadcastReceiver mBroadcastReceiver;
+    private UpdateListener mUpdateListener;
     private NotificationCompat.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
     private NotificationCompat.BigTextStyle mNotificationStyle;
@@ -103,54 +102,55 @@ public class UpdaterService extends Service {
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         mNotificationBuilder.setContentIntent(intent);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
+        mUpdateListener = new UpdateListener() {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    Bundle extras = new Bundle();
-                    extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
-                    mNotificationBuilder.setExtras(extras);
-                    handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
-                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleInstallProgress(update);
-                } else if (UpdaterController.ACTION_INSTALL_FINISHED.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    Bundle extras = mNotificationBuilder.getExtras();
-                    if (extras != null && downloadId.equals(
-                            extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
-                        mNotificationBuilder.setExtras(null);
-                        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                        if (update.getStatus() != UpdateStatus.INSTALLED) {
-                            mNotificationManager.cancel(NOTIFICATION_ID);
-                        }
+            public void onUpdateStatusChanged(UpdateInfo update) {
+                setNotificationTitle(update);
+                Bundle extras = new Bundle();
+                extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, update.getDownloadId());
+                mNotificationBuilder.setExtras(extras);
+                handleUpdateStatusChange(update);
+            }
+
+            @Override
+            public void onDownloadProgress(UpdateInfo update) {
+                handleDownloadProgressChange(update);
+            }
+
+            @Override
+            public void onInstallProgress(UpdateInfo update) {
+                setNotificationTitle(update);
+                handleInstallProgress(update);
+            }
+
+            @Override
+            public void onInstallFinished(UpdateInfo update) {
+                setNotificationTitle(update);
+                handleUpdateStatusChange(update);
+            }
+
+            @Override
+            public void onUpdateRemoved(UpdateInfo update) {
+                Bundle extras = mNotificationBuilder.getExtras();
+                if (extras != null && update.getDownloadId().equals(
+                        extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
+                    mNotificationBuilder.setExtras(null);
+                    if (update.getStatus() != UpdateStatus.INSTALLED) {
+                        mNotificationManager.cancel(NOTIFICATION_ID);
                     }
                 }
             }
         };
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_FINISHED);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
-
+        mUpdaterController.addUpdateListener(mUpdateListener,
+                ContextCompat.getMainExecutor(this));
     }
 
     @Override
     public void onDestroy() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.removeUpdateListener(mUpdateListener);
+        mUpdaterController.flushDatabase(null);
+        mUpdaterController.getEventDispatcher().logStats();
+        BackgroundExecutors.logStats();
         super.onDestroy();
     }
 
@@ -176,7 +176,12 @@ public class UpdaterService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Starting service");
+        // The command may refer to a stored update that isn't loaded yet
+        mUpdaterController.runWhenLoaded(() -> handleCommand(intent));
+        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
+    }
 
+    private void handleCommand(Intent intent) {
         if (intent == null || intent.getAction() == null) {
             if (ABUpdateInstaller.isInstallingUpdate(this)) {
                 // The service is being restarted.
@@ -200,22 +205,8 @@ public class UpdaterService extends Service {
             if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
-            try {
-                if (Utils.isABUpdate(update.getFile())) {
-                    ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
-                            mUpdaterController);
-                    installer.install(downloadId);
-                } else {
-                    UpdateInstaller installer = UpdateInstaller.getInstance(this,
-                            mUpdaterController);
-                    installer.install(downloadId);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Could not install update", e);
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
-            }
+            // The device may reboot at the end of the installation
+            mUpdaterController.flushDatabase(() -> installUpdate(update));
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
             if (UpdateInstaller.isInstalling()) {
                 UpdateInstaller installer = UpdateInstaller.getInstance(this,
@@ -242,7 +233,24 @@ public class UpdaterService extends Service {
                 installer.resume();
             }
         }
-        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
+    }
+
+    private void installUpdate(UpdateInfo update) {
+        String downloadId = update.getDownloadId();
+        try {
+            if (Utils.isABUpdate(update)) {
+                ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                        mUpdaterController);
+                installer.install(downloadId);
+            } else {
+                UpdateInstaller installer = UpdateInstaller.getInstance(this,
+                        mUpdaterController);
+                installer.install(downloadId);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not install update", e);
+            mUpdaterController.setInstallStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
+        }
     }
 
     public UpdaterController getUpdaterController() {
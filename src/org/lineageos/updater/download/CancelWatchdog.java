@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.util.Log;
+
+import org.lineageos.updater.misc.BackgroundExecutors;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Makes sure a cancelled download is reported in time. A read blocked on a
+ * socket may ignore both the interrupt and the disconnect, the given callback
+ * is run if the outcome of the download wasn't reported once the timeout
+ * elapsed.
+ */
+final class CancelWatchdog implements Runnable {
+
+    private static final String TAG = "CancelWatchdog";
+
+    private final long mTimeoutMs;
+    private final AtomicBoolean mReported;
+    private final Runnable mOnTimeout;
+
+    /**
+     * @param reported set once the outcome of the download was reported
+     * @param onTimeout run on the timer thread, must return right away
+     */
+    CancelWatchdog(long timeoutMs, AtomicBoolean reported, Runnable onTimeout) {
+        mTimeoutMs = timeoutMs;
+        mReported = reported;
+        mOnTimeout = onTimeout;
+    }
+
+    /**
+     * Start watching on the timer of {@link BackgroundExecutors}.
+     *
+     * @throws RejectedExecutionException if the check can't be scheduled
+     */
+    ScheduledFuture<?> start() {
+        return BackgroundExecutors.schedule(this, mTimeoutMs);
+    }
+
+    /**
+     * Start watching on the given timer.
+     *
+     * @throws RejectedExecutionException if the check can't be scheduled
+     */
+    ScheduledFuture<?> start(ScheduledExecutorService timer) {
+        return timer.schedule(this, mTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        if (!mReported.get()) {
+            Log.e(TAG, "Download not stopped after " + mTimeoutMs + " ms");
+            mOnTimeout.run();
+        }
+    }
+}
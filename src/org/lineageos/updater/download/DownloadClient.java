@@ -34,6 +34,12 @@ public interface DownloadClient {
         void update(long bytesRead, long contentLength, long speed, long eta, boolean done);
     }
 
+    interface MirrorRaceListener {
+        void onMirrorWon(String url, long firstByteTime, long bytesRead, long duration);
+
+        void onMirrorFailed(String url);
+    }
+
     interface Headers {
         String get(String name);
 
@@ -54,7 +60,9 @@ public interface DownloadClient {
     void resume();
 
     /**
-     * Cancel the download. This method has no effect if the download isn't ongoing.
+     * Cancel the download. DownloadCallback.onFailure(true) is called within a
+     * bounded time, once nothing is written to the destination anymore.
+     * This method has no effect if the download isn't ongoing.
      */
     void cancel();
 
@@ -64,6 +72,8 @@ public interface DownloadClient {
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private List<String> mRaceUrls;
+        private DownloadClient.MirrorRaceListener mRaceListener;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -73,6 +83,10 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
+            if (mRaceUrls != null && mRaceUrls.size() > 1) {
+                return new MirrorRaceClient(mRaceUrls, mDestination, mProgressListener,
+                        mCallback, mRaceListener, mUseDuplicateLinks);
+            }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
                     mUseDuplicateLinks);
         }
@@ -101,5 +115,20 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Race the given mirrors when starting the download and download the
+         * file from the first one delivering its first bytes fast enough.
+         * The URL set with setUrl() is ignored if more than one mirror is given.
+         */
+        public Builder setRaceMirrors(List<String> urls) {
+            mRaceUrls = urls;
+            return this;
+        }
+
+        public Builder setMirrorRaceListener(DownloadClient.MirrorRaceListener raceListener) {
+            mRaceListener = raceListener;
+            return this;
+        }
     }
 }
@@ -18,6 +18,8 @@ package org.lineageos.updater.download;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.lineageos.updater.misc.BackgroundExecutors;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -29,6 +31,10 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,14 +42,30 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
-    private HttpURLConnection mClient;
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    // A stalled link fails the download instead of blocking it forever
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+    // Longest time between cancel() and onFailure(true)
+    private static final long CANCEL_TIMEOUT_MS = 2000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_CANCELLED = 2;
+
+    // Replaced when following redirects, disconnected from any thread to cancel
+    private volatile HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
 
-    private DownloadThread mDownloadThread;
+    private Future<?> mDownload;
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+    // Only the first outcome is reported, later ones are dropped
+    private final AtomicBoolean mReported = new AtomicBoolean();
+    private volatile boolean mCancelled;
+    private volatile long mCancelTime;
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -62,6 +84,8 @@ public class HttpURLConnectionClient implements DownloadClient {
             DownloadClient.DownloadCallback callback,
             boolean useDuplicateLinks) throws IOException {
         mClient = (HttpURLConnection) new URL(url).openConnection();
+        mClient.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        mClient.setReadTimeout(READ_TIMEOUT_MS);
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
@@ -70,7 +94,7 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     @Override
     public void start() {
-        if (mDownloadThread != null) {
+        if (mDownload != null) {
             Log.e(TAG, "Already downloading");
             return;
         }
@@ -79,26 +103,67 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     @Override
     public void resume() {
-        if (mDownloadThread != null) {
+        if (mDownload != null) {
             Log.e(TAG, "Already downloading");
             return;
         }
         downloadFileResumeInternal();
     }
 
+    /**
+     * Cancel the download. An interrupt doesn't unblock a read stuck on the
+     * socket, so the connection is closed as well. onFailure(true) is called
+     * once the download stopped writing, or after {@link #CANCEL_TIMEOUT_MS}
+     * at the latest.
+     */
     @Override
     public void cancel() {
-        if (mDownloadThread == null) {
+        if (mDownload == null) {
             Log.e(TAG, "Not downloading");
             return;
         }
-        mDownloadThread.interrupt();
-        mDownloadThread = null;
+        mCancelTime = SystemClock.elapsedRealtime();
+        mCancelled = true;
+        mDownload.cancel(true);
+        mDownload = null;
+        if (mState.compareAndSet(STATE_IDLE, STATE_CANCELLED)) {
+            // Never started, nothing to wait for
+            reportFailure(true);
+            return;
+        }
+        mClient.disconnect();
+        // Checked on the timer thread, a pool busy with copies would delay it
+        try {
+            new CancelWatchdog(CANCEL_TIMEOUT_MS, mReported, () -> reportFailure(true)).start();
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not watch the cancellation", e);
+        }
+    }
+
+    private void reportFailure(boolean cancelled) {
+        if (!mReported.compareAndSet(false, true)) {
+            return;
+        }
+        // Whatever went wrong, a cancelled download is reported as such
+        cancelled |= mCancelled;
+        if (cancelled) {
+            Log.d(TAG, "Download stopped " + (SystemClock.elapsedRealtime() - mCancelTime) +
+                    " ms after being cancelled");
+        }
+        mCallback.onFailure(cancelled);
+    }
+
+    private void reportSuccess() {
+        if (mCancelled) {
+            reportFailure(true);
+        } else if (mReported.compareAndSet(false, true)) {
+            mCallback.onSuccess(mDestination);
+        }
     }
 
     private void downloadFileResumeInternal() {
         if (!mDestination.exists()) {
-            mCallback.onFailure(false);
+            reportFailure(false);
             return;
         }
         long offset = mDestination.length();
@@ -107,13 +172,18 @@ public class HttpURLConnectionClient implements DownloadClient {
     }
 
     private void downloadFileInternalCommon(boolean resume) {
-        if (mDownloadThread != null) {
+        if (mDownload != null) {
             Log.wtf(TAG, "Already downloading");
             return;
         }
 
-        mDownloadThread = new DownloadThread(resume);
-        mDownloadThread.start();
+        try {
+            mDownload = BackgroundExecutors.get(BackgroundExecutors.Pool.DOWNLOAD)
+                    .submit(new DownloadTask(resume));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not start downloading", e);
+            reportFailure(false);
+        }
     }
 
     private static boolean isSuccessCode(int statusCode) {
@@ -128,7 +198,7 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
-    private class DownloadThread extends Thread {
+    private class DownloadTask implements Runnable {
 
         private long mTotalBytes = 0;
         private long mTotalBytesRead = 0;
@@ -140,7 +210,7 @@ public class HttpURLConnectionClient implements DownloadClient {
 
         private final boolean mResume;
 
-        private DownloadThread(boolean resume) {
+        private DownloadTask(boolean resume) {
             mResume = resume;
         }
 
@@ -170,6 +240,12 @@ public class HttpURLConnectionClient implements DownloadClient {
             String range = mClient.getRequestProperty("Range");
             mClient.disconnect();
             mClient = (HttpURLConnection) newUrl.openConnection();
+            mClient.setReadTimeout(READ_TIMEOUT_MS);
+            if (mCancelled) {
+                // cancel() may have disconnected the previous connection only
+                mClient.disconnect();
+                throw new IOException("Download cancelled");
+            }
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
@@ -231,7 +307,7 @@ public class HttpURLConnectionClient implements DownloadClient {
                     }
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
+                    if (duplicates != null && !duplicates.isEmpty() && !isInterrupted()) {
                         DuplicateLink link = duplicates.poll();
                         duplicates.remove(link);
                         newUrl = link.mUrl;
@@ -243,8 +319,15 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        private boolean isInterrupted() {
+            return mCancelled || Thread.currentThread().isInterrupted();
+        }
+
         @Override
         public void run() {
+            if (!mState.compareAndSet(STATE_IDLE, STATE_RUNNING)) {
+                return;
+            }
             try {
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
                 mClient.connect();
@@ -255,6 +338,10 @@ public class HttpURLConnectionClient implements DownloadClient {
                     responseCode = mClient.getResponseCode();
                 }
 
+                if (isInterrupted()) {
+                    reportFailure(true);
+                    return;
+                }
                 mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
 
                 if (mResume && isPartialContentCode(responseCode)) {
@@ -262,7 +349,7 @@ public class HttpURLConnectionClient implements DownloadClient {
                     Log.d(TAG, "The server fulfilled the partial content request");
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
-                    mCallback.onFailure(isInterrupted());
+                    reportFailure(isInterrupted());
                     return;
                 }
 
@@ -273,31 +360,37 @@ public class HttpURLConnectionClient implements DownloadClient {
                     mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
                     byte[] b = new byte[8192];
                     int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
+                    // Checked again after the read, nothing is written once cancelled
+                    while (!isInterrupted() && (count = inputStream.read(b)) > 0 &&
+                            !isInterrupted()) {
                         outputStream.write(b, 0, count);
                         mTotalBytesRead += count;
                         calculateSpeed();
                         calculateEta();
-                        if (mProgressListener != null) {
+                        if (mProgressListener != null && !isInterrupted()) {
                             mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
                                     false);
                         }
                     }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
-                    }
-
                     outputStream.flush();
 
                     if (isInterrupted()) {
-                        mCallback.onFailure(true);
+                        reportFailure(true);
                     } else {
-                        mCallback.onSuccess(mDestination);
+                        if (mProgressListener != null) {
+                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
+                                    true);
+                        }
+                        reportSuccess();
                     }
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Error downloading file", e);
-                mCallback.onFailure(isInterrupted());
+                if (isInterrupted()) {
+                    Log.d(TAG, "Download cancelled: " + e.getMessage());
+                } else {
+                    Log.e(TAG, "Error downloading file", e);
+                }
+                reportFailure(isInterrupted());
             } finally {
                 mClient.disconnect();
             }
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.updater.misc.BackgroundExecutors;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Download client that races the given mirrors before downloading. Every
+ * mirror is asked for the first bytes of the file at the same time and the
+ * first one delivering them fast enough is used for the actual download.
+ * The bytes the winner delivered are kept and the download resumes after
+ * them, over the connection the winner left open when the server allows it.
+ */
+class MirrorRaceClient implements DownloadClient {
+
+    private final static String TAG = "MirrorRaceClient";
+
+    private static final int RACE_FIRST_BYTES = 256 * 1024;
+    private static final long RACE_MIN_RATE = 64 * 1024;
+    private static final int RACE_TIMEOUT_MS = 10000;
+
+    private final List<String> mUrls;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final DownloadClient.MirrorRaceListener mRaceListener;
+    private final boolean mUseDuplicateLinks;
+
+    private final List<HttpURLConnection> mConnections = new ArrayList<>();
+    private Future<?> mRace;
+    private DownloadClient mDownloadClient;
+    private volatile boolean mCancelled;
+    // Set by whichever comes first of the race and its cancellation
+    private final AtomicBoolean mRaceClaimed = new AtomicBoolean();
+
+    private static class Entrant {
+        private final String mUrl;
+        private long mFirstByteTime = -1;
+        private int mBytesRead;
+        private long mDuration;
+        private boolean mQualified;
+        // The first bytes of the file, if the server honored the range
+        private byte[] mHead;
+
+        private Entrant(String url) {
+            mUrl = url;
+        }
+    }
+
+    MirrorRaceClient(List<String> urls, File destination,
+            DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback,
+            DownloadClient.MirrorRaceListener raceListener,
+            boolean useDuplicateLinks) {
+        mUrls = new ArrayList<>(urls);
+        mDestination = destination;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mRaceListener = raceListener;
+        mUseDuplicateLinks = useDuplicateLinks;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mRace != null || mDownloadClient != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        try {
+            mRace = BackgroundExecutors.get(BackgroundExecutors.Pool.DOWNLOAD).submit(this::race);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not start the race", e);
+            mCallback.onFailure(false);
+        }
+    }
+
+    @Override
+    public synchronized void resume() {
+        if (mRace != null || mDownloadClient != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        // The file was already started from a mirror, keep using it
+        try {
+            mDownloadClient = createClient(mUrls.get(0));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not build download client", e);
+            mCallback.onFailure(false);
+            return;
+        }
+        mDownloadClient.resume();
+    }
+
+    @Override
+    public void cancel() {
+        DownloadClient downloadClient;
+        boolean raceSkipped = false;
+        synchronized (this) {
+            if (mRace == null && mDownloadClient == null) {
+                Log.e(TAG, "Not downloading");
+                return;
+            }
+            mCancelled = true;
+            downloadClient = mDownloadClient;
+            if (mRace != null) {
+                mRace.cancel(true);
+                // The race never ran if it can still be claimed
+                raceSkipped = mRaceClaimed.compareAndSet(false, true);
+                if (raceSkipped) {
+                    mRace = null;
+                }
+            }
+        }
+        if (raceSkipped) {
+            mCallback.onFailure(true);
+            return;
+        }
+        disconnectAll();
+        if (downloadClient != null) {
+            downloadClient.cancel();
+        }
+    }
+
+    private DownloadClient createClient(String url) throws IOException {
+        return new HttpURLConnectionClient(url, mDestination, mProgressListener, mCallback,
+                mUseDuplicateLinks);
+    }
+
+    private void race() {
+        if (!mRaceClaimed.compareAndSet(false, true)) {
+            return;
+        }
+        ExecutorCompletionService<Entrant> completionService =
+                new ExecutorCompletionService<>(
+                        BackgroundExecutors.get(BackgroundExecutors.Pool.NETWORK));
+        List<Future<Entrant>> futures = new ArrayList<>();
+        Entrant winner = null;
+        try {
+            for (String url : mUrls) {
+                futures.add(completionService.submit(() -> runEntrant(url)));
+            }
+            long deadline = SystemClock.elapsedRealtime() + RACE_TIMEOUT_MS;
+            for (int i = 0; i < futures.size() && winner == null; i++) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                Future<Entrant> future = completionService.poll(remaining, TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    Log.d(TAG, "No mirror qualified in time");
+                    break;
+                }
+                Entrant entrant = future.get();
+                if (entrant.mQualified) {
+                    winner = entrant;
+                } else if (mRaceListener != null && !mCancelled) {
+                    mRaceListener.onMirrorFailed(entrant.mUrl);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Race interrupted");
+        } catch (ExecutionException | RejectedExecutionException e) {
+            Log.e(TAG, "Race failed", e);
+        } finally {
+            for (Future<Entrant> future : futures) {
+                future.cancel(true);
+            }
+            disconnectAll();
+        }
+
+        String url;
+        boolean resume = false;
+        if (winner != null) {
+            Log.d(TAG, "Mirror " + winner.mUrl + " won the race");
+            url = winner.mUrl;
+            if (mRaceListener != null) {
+                mRaceListener.onMirrorWon(winner.mUrl, winner.mFirstByteTime,
+                        winner.mBytesRead, winner.mDuration);
+            }
+            resume = winner.mHead != null && !mCancelled && writeHead(winner.mHead);
+        } else {
+            // Fall back to the preferred mirror, the download itself will tell
+            url = mUrls.get(0);
+        }
+
+        synchronized (this) {
+            mRace = null;
+            if (!mCancelled) {
+                try {
+                    mDownloadClient = createClient(url);
+                    if (resume) {
+                        mDownloadClient.resume();
+                    } else {
+                        mDownloadClient.start();
+                    }
+                    return;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not build download client", e);
+                }
+            }
+        }
+        mCallback.onFailure(mCancelled);
+    }
+
+    /**
+     * Write the bytes delivered by the winner of the race, so that the download
+     * only asks for the rest of the file.
+     *
+     * @return whether the download can resume after them
+     */
+    private boolean writeHead(byte[] head) {
+        try (OutputStream outputStream = new FileOutputStream(mDestination)) {
+            outputStream.write(head);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write the first bytes of the download", e);
+            return false;
+        }
+    }
+
+    private Entrant runEntrant(String url) throws IOException {
+        Entrant entrant = new Entrant(url);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        synchronized (mConnections) {
+            mConnections.add(connection);
+        }
+        // Kept open for the download if the whole range was read
+        boolean keepAlive = false;
+        try {
+            connection.setConnectTimeout(RACE_TIMEOUT_MS);
+            connection.setReadTimeout(RACE_TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=0-" + (RACE_FIRST_BYTES - 1));
+            final long start = SystemClock.elapsedRealtime();
+            int responseCode = connection.getResponseCode();
+            if ((responseCode / 100) != 2) {
+                Log.d(TAG, url + " replied with " + responseCode);
+                return entrant;
+            }
+            entrant.mFirstByteTime = SystemClock.elapsedRealtime() - start;
+            byte[] head = new byte[RACE_FIRST_BYTES];
+            try (InputStream inputStream = connection.getInputStream()) {
+                int count;
+                while (entrant.mBytesRead < RACE_FIRST_BYTES &&
+                        !Thread.currentThread().isInterrupted() &&
+                        (count = inputStream.read(head, entrant.mBytesRead,
+                                RACE_FIRST_BYTES - entrant.mBytesRead)) > 0) {
+                    entrant.mBytesRead += count;
+                }
+                // A server ignoring the range sends the whole file, its bytes
+                // can't be resumed from and the connection can't be reused
+                keepAlive = responseCode == HttpURLConnection.HTTP_PARTIAL &&
+                        entrant.mBytesRead == RACE_FIRST_BYTES;
+            }
+            entrant.mDuration = Math.max(SystemClock.elapsedRealtime() - start, 1);
+            long rate = entrant.mBytesRead * 1000L / entrant.mDuration;
+            entrant.mQualified = entrant.mBytesRead > 0 && rate >= RACE_MIN_RATE;
+            if (keepAlive) {
+                entrant.mHead = head;
+            }
+            Log.d(TAG, url + " delivered " + entrant.mBytesRead + " bytes at " + rate + " B/s");
+        } catch (IOException e) {
+            Log.d(TAG, "Mirror " + url + " failed", e);
+            keepAlive = false;
+        } finally {
+            synchronized (mConnections) {
+                mConnections.remove(connection);
+            }
+            // Closing the fully read stream returned the connection to the
+            // pool, the download of the winner picks it up again
+            if (!keepAlive) {
+                connection.disconnect();
+            }
+        }
+        return entrant;
+    }
+
+    private void disconnectAll() {
+        synchronized (mConnections) {
+            for (HttpURLConnection connection : mConnections) {
+                connection.disconnect();
+            }
+            mConnections.clear();
+        }
+    }
+}
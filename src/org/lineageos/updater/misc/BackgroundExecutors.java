@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the executors running the background work of the app. Each kind
+ * of work has its own named pool with a bounded number of threads and a bounded
+ * queue, so a burst of one kind can neither starve the others nor spawn an
+ * unbounded number of threads. The pools record how deep their queue got and
+ * how long the tasks waited and ran.
+ */
+public final class BackgroundExecutors {
+
+    private static final String TAG = "BackgroundExecutors";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Pool {
+        // Disk work: copies, deletions, exports
+        IO("io", 2, 64),
+        // Hashing and other work bound by the CPU
+        CPU("cpu", Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4)), 64),
+        // Short network requests: mirror races, mirror lists
+        NETWORK("network", 6, 64),
+        // Mirror probes. Each one waits seconds for ping, they get their own
+        // threads so that they never delay a race
+        PROBE("probe", 4, 64),
+        // Transfers, one task per download at a time. Never waits for an other
+        // task of this pool, only for the ones of NETWORK
+        DOWNLOAD("download", 2 * Constants.MAX_CONCURRENT_DOWNLOADS, 16),
+        // Database writes, one at a time
+        DB("db", 1, 256);
+
+        private final String mName;
+        private final int mThreads;
+        private final int mQueueSize;
+        private volatile InstrumentedExecutor mExecutor;
+
+        Pool(String name, int threads, int queueSize) {
+            mName = name;
+            mThreads = threads;
+            mQueueSize = queueSize;
+        }
+    }
+
+    private static final List<InstrumentedExecutor> sExecutors = new CopyOnWriteArrayList<>();
+
+    // Hands the delayed tasks over to their executor, only runs the few that
+    // never block
+    private static final ScheduledExecutorService sTimer =
+            new ScheduledThreadPoolExecutor(1, runnable -> new Thread(runnable, "updater-timer"));
+
+    private BackgroundExecutors() {
+    }
+
+    /**
+     * @return the executor of the given pool
+     */
+    public static ExecutorService get(Pool pool) {
+        InstrumentedExecutor executor = pool.mExecutor;
+        if (executor == null) {
+            synchronized (pool) {
+                executor = pool.mExecutor;
+                if (executor == null) {
+                    executor = register(new InstrumentedExecutor(pool.mName, pool.mThreads,
+                            pool.mQueueSize));
+                    pool.mExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Create a named executor running its tasks one at a time, in order. Meant
+     * for the components whose tasks must not run concurrently.
+     */
+    public static ExecutorService newSerialExecutor(String name, int queueSize) {
+        return register(new InstrumentedExecutor(name, 1, queueSize));
+    }
+
+    /**
+     * Run the given task on the given executor once the delay elapsed.
+     *
+     * @throws RejectedExecutionException if the task can't be scheduled. A
+     *         rejection by the executor once the delay elapsed is only logged.
+     */
+    public static ScheduledFuture<?> schedule(Executor executor, Runnable task, long delayMs) {
+        return sTimer.schedule(() -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Could not run delayed task", e);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the given task on the timer thread once the delay elapsed. Only for
+     * the tasks that return right away: the other timers wait for them, but
+     * they don't wait behind the tasks of a busy pool.
+     *
+     * @throws RejectedExecutionException if the task can't be scheduled
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return sTimer.schedule(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Nobody reads the future, the error would go unnoticed
+                Log.e(TAG, "Delayed task failed", e);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static InstrumentedExecutor register(InstrumentedExecutor executor) {
+        sExecutors.add(executor);
+        return executor;
+    }
+
+    /**
+     * Log the metrics of every executor created so far.
+     */
+    public static void logStats() {
+        for (InstrumentedExecutor executor : sExecutors) {
+            executor.logStats();
+        }
+    }
+
+    private static class InstrumentedExecutor extends ThreadPoolExecutor {
+        private final String mName;
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+        private final AtomicLong mRejected = new AtomicLong();
+        private final AtomicLong mTasks = new AtomicLong();
+        private final AtomicLong mWaitNanos = new AtomicLong();
+        private final AtomicLong mMaxWaitNanos = new AtomicLong();
+        private final AtomicLong mRunNanos = new AtomicLong();
+        private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+        private InstrumentedExecutor(String name, int threads, int queueSize) {
+            super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(queueSize));
+            mName = name;
+            allowCoreThreadTimeOut(true);
+            setThreadFactory(runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "updater-" + mName + "-" + mThreadCount.incrementAndGet()));
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            final long queued = System.nanoTime();
+            try {
+                super.execute(() -> {
+                    final long start = System.nanoTime();
+                    long wait = start - queued;
+                    mWaitNanos.addAndGet(wait);
+                    mMaxWaitNanos.accumulateAndGet(wait, Math::max);
+                    try {
+                        command.run();
+                    } finally {
+                        mRunNanos.addAndGet(System.nanoTime() - start);
+                        mTasks.incrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mRejected.incrementAndGet();
+                Log.e(TAG, "Pool " + mName + " rejected a task, " + getQueue().size() +
+                        " queued");
+                throw e;
+            }
+            mMaxQueueDepth.accumulateAndGet(getQueue().size(), Math::max);
+        }
+
+        private void logStats() {
+            long tasks = mTasks.get();
+            Log.d(TAG, mName + ": " + tasks + " tasks, " + mRejected.get() + " rejected, " +
+                    getActiveCount() + " running, " + getQueue().size() + " queued (max " +
+                    mMaxQueueDepth.get() + "), largest pool " + getLargestPoolSize());
+            if (tasks > 0) {
+                Log.d(TAG, mName + ": wait " + mWaitNanos.get() / tasks / 1000 +
+                        " us avg, " + mMaxWaitNanos.get() / 1000 + " us max, run " +
+                        mRunNanos.get() / tasks / 1000 + " us avg");
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes files on several cores. The file is split in fixed size chunks that
+ * are memory-mapped and hashed independently, the digest of the file is the
+ * SHA-256 of the size, the chunk size and the digests of all the chunks. This
+ * is not the plain SHA-256 of the file: two digests can only be compared if
+ * they were computed with the same chunk size.
+ */
+public final class ChunkedHasher {
+
+    private static final String TAG = "ChunkedHasher";
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final int MAX_THREADS = 8;
+
+    private ChunkedHasher() {
+    }
+
+    /**
+     * Digest of a file and of each of its chunks.
+     */
+    public static final class Digest {
+        private final long mSize;
+        private final int mChunkSize;
+        private final byte[][] mChunks;
+        private final byte[] mRoot;
+
+        private Digest(long size, int chunkSize, byte[][] chunks) {
+            mSize = size;
+            mChunkSize = chunkSize;
+            mChunks = chunks;
+            MessageDigest digest = newMessageDigest();
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+            header.putLong(size).putInt(chunkSize).flip();
+            digest.update(header);
+            for (byte[] chunk : chunks) {
+                digest.update(chunk);
+            }
+            mRoot = digest.digest();
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public int getChunkSize() {
+            return mChunkSize;
+        }
+
+        public int getChunkCount() {
+            return mChunks.length;
+        }
+
+        public byte[] getChunkDigest(int chunk) {
+            return mChunks[chunk].clone();
+        }
+
+        /**
+         * @return the digest of the whole file
+         */
+        public byte[] getRoot() {
+            return mRoot.clone();
+        }
+
+        public String getRootHex() {
+            StringBuilder sb = new StringBuilder(mRoot.length * 2);
+            for (byte b : mRoot) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Digest)) {
+                return false;
+            }
+            Digest other = (Digest) o;
+            return mSize == other.mSize && mChunkSize == other.mChunkSize &&
+                    Arrays.equals(mRoot, other.mRoot);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(mRoot);
+        }
+    }
+
+    /**
+     * Hash the given file with the default chunk size, using as many threads
+     * as there are cores.
+     *
+     * @see #hash(File, int, int, FileUtils.ProgressCallBack)
+     */
+    public static Digest hash(File file, FileUtils.ProgressCallBack progressCallBack)
+            throws IOException {
+        return hash(file, DEFAULT_CHUNK_SIZE, progressCallBack);
+    }
+
+    /**
+     * Hash the given file with the given chunk size, using as many threads as
+     * there are cores.
+     *
+     * @see #hash(File, int, int, FileUtils.ProgressCallBack)
+     */
+    public static Digest hash(File file, int chunkSize,
+            FileUtils.ProgressCallBack progressCallBack) throws IOException {
+        return hash(file, chunkSize,
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS),
+                progressCallBack);
+    }
+
+    /**
+     * Hash the given file. The calling thread does its share of the work and the
+     * other threads are taken from the CPU pool, if it has room for them.
+     *
+     * @param threads the number of threads hashing the chunks, the calling
+     *        thread included
+     * @param progressCallBack called each time the progress changes, from any
+     *        of the hashing threads but never concurrently. Can be null
+     * @throws InterruptedIOException if the calling thread was interrupted
+     */
+    public static Digest hash(File file, int chunkSize, int threads,
+            FileUtils.ProgressCallBack progressCallBack) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            final long size = channel.size();
+            final int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+            HashJob job = new HashJob(channel, size, chunkSize, chunks, progressCallBack);
+
+            int helpers = Math.min(Math.max(threads, 1), chunks) - 1;
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    BackgroundExecutors.get(BackgroundExecutors.Pool.CPU).execute(job::help);
+                } catch (RejectedExecutionException e) {
+                    // The threads already running will do the work
+                    break;
+                }
+            }
+
+            try {
+                job.work();
+            } catch (IOException e) {
+                job.fail(e);
+            }
+            // Rethrows the first error of any of the threads
+            job.close();
+            Digest digest = new Digest(size, chunkSize, job.mChunks);
+
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Hashed " + file.getName() + " (" + size / (1024 * 1024) + " MB) in " +
+                    elapsed + " ms with up to " + (job.getPeakHelpers() + 1) + " threads" +
+                    (elapsed > 0 ? ", " + size * 1000 / elapsed / (1024 * 1024) + " MB/s" : ""));
+            return digest;
+        }
+    }
+
+    /**
+     * Computes the digest of a file from its content fed in order, on the
+     * calling thread. Meant for the callers already reading the whole file,
+     * so that it's read only once.
+     */
+    public static final class Accumulator {
+        private final long mSize;
+        private final int mChunkSize;
+        private final byte[][] mChunks;
+        private final MessageDigest mDigest = newMessageDigest();
+        private long mPosition;
+
+        public Accumulator(long size, int chunkSize) {
+            mSize = size;
+            mChunkSize = chunkSize;
+            mChunks = new byte[(int) ((size + chunkSize - 1) / chunkSize)][];
+        }
+
+        /**
+         * Hash the remaining bytes of the given buffer, which follow the ones
+         * fed before. The position of the buffer is moved to its limit.
+         */
+        public void update(ByteBuffer buffer) {
+            if (buffer.remaining() > mSize - mPosition) {
+                throw new IllegalArgumentException("More bytes than the size of the file");
+            }
+            while (buffer.hasRemaining()) {
+                int chunk = (int) (mPosition / mChunkSize);
+                long chunkEnd = Math.min((long) (chunk + 1) * mChunkSize, mSize);
+                int length = (int) Math.min(buffer.remaining(), chunkEnd - mPosition);
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + length);
+                mDigest.update(buffer);
+                buffer.limit(limit);
+                mPosition += length;
+                if (mPosition == chunkEnd) {
+                    mChunks[chunk] = mDigest.digest();
+                }
+            }
+        }
+
+        /**
+         * @throws IllegalStateException if the whole file wasn't fed
+         */
+        public Digest digest() {
+            if (mPosition != mSize) {
+                throw new IllegalStateException("Only " + mPosition + " of " + mSize +
+                        " bytes hashed");
+            }
+            return new Digest(mSize, mChunkSize, mChunks);
+        }
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform has it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * State shared by the threads hashing a file. Each thread takes the next
+     * chunk nobody took until there's none left or one of them failed.
+     */
+    private static final class HashJob {
+        private final FileChannel mChannel;
+        private final long mSize;
+        private final int mChunkSize;
+        private final byte[][] mChunks;
+        private final FileUtils.ProgressCallBack mProgressCallBack;
+        private final AtomicInteger mNextChunk = new AtomicInteger();
+
+        // Guarded by this
+        private long mHashed;
+        private int mProgress = -1;
+        private int mHelpers;
+        private int mPeakHelpers;
+        private boolean mClosed;
+        private IOException mError;
+
+        private volatile boolean mAborted;
+
+        private HashJob(FileChannel channel, long size, int chunkSize, int chunks,
+                FileUtils.ProgressCallBack progressCallBack) {
+            mChannel = channel;
+            mSize = size;
+            mChunkSize = chunkSize;
+            mChunks = new byte[chunks][];
+            mProgressCallBack = progressCallBack;
+        }
+
+        /**
+         * Run by the helper threads.
+         */
+        private void help() {
+            synchronized (this) {
+                // The file may be already closed
+                if (mClosed) {
+                    return;
+                }
+                mHelpers++;
+                mPeakHelpers = Math.max(mPeakHelpers, mHelpers);
+            }
+            try {
+                work();
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            } finally {
+                synchronized (this) {
+                    mHelpers--;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void work() throws IOException {
+            MessageDigest digest = newMessageDigest();
+            int chunk;
+            while (!mAborted && (chunk = mNextChunk.getAndIncrement()) < mChunks.length) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Hashing interrupted");
+                }
+                long position = (long) chunk * mChunkSize;
+                long length = Math.min(mChunkSize, mSize - position);
+                digest.update(mChannel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                byte[] result = digest.digest();
+                synchronized (this) {
+                    mChunks[chunk] = result;
+                    mHashed += length;
+                    int progress = (int) (mHashed * 100 / mSize);
+                    if (mProgressCallBack != null && progress != mProgress) {
+                        mProgress = progress;
+                        mProgressCallBack.update(progress);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the highest number of helpers that were running at the same
+         *         time, the calling thread excluded
+         */
+        private synchronized int getPeakHelpers() {
+            return mPeakHelpers;
+        }
+
+        private synchronized void fail(IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+            mAborted = true;
+        }
+
+        /**
+         * Wait for the helpers still running, so that the file can be closed.
+         *
+         * @throws IOException if one of the helpers failed
+         */
+        private synchronized void close() throws IOException {
+            mClosed = true;
+            while (mHelpers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    mAborted = true;
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Hashing interrupted");
+                }
+            }
+            if (mError != null) {
+                throw mError;
+            }
+        }
+    }
+}
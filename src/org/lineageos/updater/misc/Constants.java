@@ -25,6 +25,18 @@ public final class Constants {
     // version will be set according to the update version in the mirrors function
     public static final String SF_PROJECT_ROOT_PATH_NAME = "arrow-";
     public static final String[] arrowMirrors = { "Europe", "Usa", "Asia SE" };
+    // Mirror statistics younger than this are used instead of probing the mirror again
+    public static final long MIRROR_STATS_TTL = 6 * 60 * 60 * 1000;
+    // Number of mirrors raced against each other when starting a download
+    public static final int MIRROR_RACE_SIZE = 3;
+    // Downloads running at the same time, the others wait for their turn
+    public static final int MAX_CONCURRENT_DOWNLOADS = 2;
+    // SourceForge mirror list fetched more recently than this is not fetched again
+    public static final long SF_MIRRORS_TTL = 24 * 60 * 60 * 1000;
+    // Time to wait before fetching the SourceForge mirror list again after a failure
+    public static final long SF_MIRRORS_RETRY_DELAY = 15 * 60 * 1000;
+    // Change notifications of an update sent within this window are merged
+    public static final long UPDATE_EVENTS_WINDOW_MS = 500;
 
     public static final String AB_PAYLOAD_BIN_PATH = "payload.bin";
     public static final String AB_PAYLOAD_PROPERTIES_PATH = "payload_properties.txt";
@@ -41,6 +53,7 @@ public final class Constants {
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
     public static final String PREF_RANK_SORT = "rank_sort";
+    public static final String PREF_RACE_MIRRORS = "race_mirrors";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
@@ -37,22 +37,23 @@ import org.json.JSONObject;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.model.InstallManifest;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateBaseInfo;
 import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateMirror;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class Utils {
 
@@ -65,6 +66,40 @@ public class Utils {
         return new File(context.getString(R.string.download_path));
     }
 
+    /**
+     * Get where the package of the given update is downloaded. Each update has
+     * its own directory named after its download ID and the package keeps its
+     * name in it. The same package always goes to the same place, so that what
+     * was already downloaded of it is found again instead of being duplicated.
+     */
+    public static File getDownloadFile(File downloadPath, UpdateInfo update) {
+        // The ID comes from the server, don't let it point elsewhere
+        String directory = update.getDownloadId().replaceAll("[^A-Za-z0-9._-]", "_");
+        if (directory.isEmpty() || directory.startsWith(".")) {
+            directory = "_" + directory;
+        }
+        return new File(new File(downloadPath, directory), update.getName());
+    }
+
+    /**
+     * Delete the given downloaded package, and its directory if nothing else
+     * is left in it.
+     *
+     * @return false if the package could not be deleted
+     */
+    public static boolean deleteDownloadFile(File downloadPath, File file) {
+        if (file.exists() && !file.delete()) {
+            return false;
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.equals(downloadPath) &&
+                downloadPath.equals(parent.getParentFile())) {
+            // Fails if not empty
+            parent.delete();
+        }
+        return true;
+    }
+
     public static File getExportPath(Context context) {
         File dir = new File(context.getExternalFilesDir(null),
                 context.getString(R.string.export_path));
@@ -91,9 +126,27 @@ public class Utils {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setVersion(object.getString("version"));
+        JSONArray mirrors = object.optJSONArray("mirrors");
+        if (mirrors != null) {
+            update.setMirrors(parseJsonMirrors(mirrors));
+        }
         return update;
     }
 
+    private static List<UpdateMirror> parseJsonMirrors(JSONArray mirrors) {
+        List<UpdateMirror> updateMirrors = new ArrayList<>();
+        for (int i = 0; i < mirrors.length(); i++) {
+            try {
+                JSONObject mirror = mirrors.getJSONObject(i);
+                updateMirrors.add(new UpdateMirror(mirror.getString("name"),
+                        mirror.getString("url"), Math.max(mirror.optInt("weight", 1), 0)));
+            } catch (JSONException e) {
+                Log.e(TAG, "Could not parse mirror object, index=" + i, e);
+            }
+        }
+        return updateMirrors;
+    }
+
     public static boolean isCompatible(UpdateBaseInfo update) {
         if (update.getVersion().compareTo(SystemProperties.get(Constants.PROP_BUILD_VERSION)) < 0) {
             Log.d(TAG, update.getName() + " is older than current Android version");
@@ -200,6 +253,16 @@ public class Utils {
         return !(info == null || !info.isConnected() || !info.isAvailable());
     }
 
+    /**
+     * @return the type of the active network, like WIFI or MOBILE, or NONE
+     */
+    public static String getNetworkType(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null ? info.getTypeName() : "NONE";
+    }
+
     public static boolean isOnWifiOrEthernet(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
@@ -235,44 +298,18 @@ public class Utils {
         return false;
     }
 
-    /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
-     */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
     public static void removeUncryptFiles(File downloadPath) {
-        File[] uncryptFiles = downloadPath.listFiles(
-                (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
-        if (uncryptFiles == null) {
+        File[] files = downloadPath.listFiles();
+        if (files == null) {
             return;
         }
-        for (File file : uncryptFiles) {
-            file.delete();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                // The directory of a package
+                removeUncryptFiles(file);
+            } else if (file.getName().endsWith(Constants.UNCRYPT_FILE_EXT)) {
+                file.delete();
+            }
         }
     }
 
@@ -298,7 +335,7 @@ public class Utils {
                 lastUpdatePath != null) {
             File lastUpdate = new File(lastUpdatePath);
             if (lastUpdate.exists()) {
-                lastUpdate.delete();
+                deleteDownloadFile(downloadPath, lastUpdate);
                 // Remove the pref not to delete the file if re-downloaded
                 preferences.edit().remove(Constants.PREF_INSTALL_PACKAGE_PATH).apply();
             }
@@ -319,19 +356,32 @@ public class Utils {
         }
 
         // Ideally the database is empty when we get here
-        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
+        UpdatesDbHelper dbHelper = UpdatesDbHelper.getInstance(context);
         List<String> knownPaths = new ArrayList<>();
         for (UpdateInfo update : dbHelper.getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
         }
+        deleteUnknownFiles(files, knownPaths);
+
+        preferences.edit().putBoolean(DOWNLOADS_CLEANUP_DONE, true).apply();
+    }
+
+    private static void deleteUnknownFiles(File[] files, List<String> knownPaths) {
         for (File file : files) {
-            if (!knownPaths.contains(file.getAbsolutePath())) {
-                Log.d(TAG, "Deleting " + file.getAbsolutePath());
-                file.delete();
+            if (knownPaths.contains(file.getAbsolutePath())) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                if (children != null) {
+                    deleteUnknownFiles(children, knownPaths);
+                }
+            }
+            // Directories are only deleted once empty
+            if (file.delete()) {
+                Log.d(TAG, "Deleted " + file.getAbsolutePath());
             }
         }
-
-        preferences.edit().putBoolean(DOWNLOADS_CLEANUP_DONE, true).apply();
     }
 
     public static File appendSequentialNumber(final File file) {
@@ -359,16 +409,40 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    public static boolean isABUpdate(File file) throws IOException {
+        try (ZipIndex zip = ZipIndex.open(file)) {
+            return zip.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                    zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+        }
     }
 
-    public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+    /**
+     * Tell whether the package of the given update is an A/B one, from its
+     * install manifest if known, from the package itself otherwise.
+     */
+    public static boolean isABUpdate(UpdateInfo update) throws IOException {
+        InstallManifest manifest = update.getInstallManifest();
+        return manifest != null ? manifest.isABUpdate() : isABUpdate(update.getFile());
+    }
+
+    /**
+     * Read from the given package what installing it needs to know.
+     */
+    public static InstallManifest readInstallManifest(File file) throws IOException {
+        try (ZipIndex zip = ZipIndex.open(file)) {
+            ZipIndex.Entry payload = zip.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+            ZipIndex.Entry payloadProperties = zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+            if (payload == null || payloadProperties == null) {
+                return InstallManifest.forNonABUpdate();
+            }
+            // update_engine reads the payload in place
+            if (!payload.isStored()) {
+                throw new IOException("Compressed payload");
+            }
+            String properties = new String(zip.read(payloadProperties), StandardCharsets.UTF_8);
+            return InstallManifest.forABUpdate(zip.getDataOffset(payload),
+                    payload.getCompressedSize(), Arrays.asList(properties.split("\\r?\\n")));
+        }
     }
 
     public static boolean hasTouchscreen(Context context) {
@@ -399,6 +473,11 @@ public class Utils {
         return preferences.getBoolean(Constants.PREF_RANK_SORT, false);
     }
 
+    public static boolean getRaceMirrorsSetting(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getBoolean(Constants.PREF_RACE_MIRRORS, false);
+    }
+
     public static boolean isUpdateCheckEnabled(Context context) {
         return getUpdateCheckSetting(context) != Constants.AUTO_UPDATES_CHECK_INTERVAL_NEVER;
     }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Index of the entries of a zip file, read straight from its central
+ * directory. Only the end of the file and the directory are read, and the
+ * local header of an entry when its data is needed, so opening a package of a
+ * few gigabytes takes a handful of small reads. Data offsets come from the
+ * local headers themselves, which may differ from the central directory.
+ * Zip64 files are supported, multi-disk ones aren't.
+ */
+public final class ZipIndex implements Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    // Most comments are small, look for them there first
+    private static final int EOCD_FIRST_SEARCH = 4096;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int CD_HEADER_SIZE = 46;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    // Entries read in memory, the others are only located
+    private static final int MAX_READ_SIZE = 1024 * 1024;
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isStored() {
+            return mMethod == METHOD_STORED;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final long mCentralDirectoryOffset;
+    private final Map<String, Entry> mEntries;
+
+    private ZipIndex(FileChannel channel) throws IOException {
+        mChannel = channel;
+        final long fileSize = channel.size();
+
+        long eocdOffset = findEocd(fileSize, EOCD_FIRST_SEARCH);
+        if (eocdOffset < 0) {
+            eocdOffset = findEocd(fileSize, MAX_COMMENT_SIZE);
+        }
+        if (eocdOffset < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        ByteBuffer eocd = read(eocdOffset, EOCD_SIZE);
+        long count = eocd.getShort(10) & 0xffff;
+        long cdSize = eocd.getInt(12) & 0xffffffffL;
+        long cdOffset = eocd.getInt(16) & 0xffffffffL;
+
+        if (count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            if (eocdOffset < ZIP64_LOCATOR_SIZE) {
+                throw new ZipException("Zip64 locator not found");
+            }
+            ByteBuffer locator = read(eocdOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new ZipException("Zip64 locator not found");
+            }
+            ByteBuffer zip64Eocd = read(locator.getLong(8), ZIP64_EOCD_SIZE);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("Zip64 end of central directory not found");
+            }
+            count = zip64Eocd.getLong(32);
+            cdSize = zip64Eocd.getLong(40);
+            cdOffset = zip64Eocd.getLong(48);
+        }
+        if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > eocdOffset ||
+                cdSize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory");
+        }
+        mCentralDirectoryOffset = cdOffset;
+        mEntries = Collections.unmodifiableMap(readCentralDirectory(cdOffset, (int) cdSize,
+                count));
+    }
+
+    /**
+     * Read the central directory of the given file.
+     */
+    public static ZipIndex open(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            return new ZipIndex(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    /**
+     * @return the entry with the given name, null if there's none
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    public Map<String, Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Get the offset of the data of the given entry in the file, as found in
+     * its local header.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset < 0) {
+            ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_SIGNATURE) {
+                throw new ZipException("Invalid local header for " + entry.mName);
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            long dataOffset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength +
+                    extraLength;
+            if (dataOffset + entry.mCompressedSize > mCentralDirectoryOffset) {
+                throw new ZipException("Data of " + entry.mName + " overlaps the directory");
+            }
+            entry.mDataOffset = dataOffset;
+        }
+        return entry.mDataOffset;
+    }
+
+    /**
+     * Read the uncompressed content of the given entry. Meant for small
+     * entries, like the metadata of a package.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.mSize > MAX_READ_SIZE || entry.mCompressedSize > MAX_READ_SIZE) {
+            throw new ZipException(entry.mName + " is too big to be read");
+        }
+        ByteBuffer data = read(getDataOffset(entry), (int) entry.mCompressedSize);
+        byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+        switch (entry.mMethod) {
+            case METHOD_STORED:
+                return compressed;
+            case METHOD_DEFLATED:
+                return inflate(entry, compressed);
+            default:
+                throw new ZipException("Unsupported compression method " + entry.mMethod +
+                        " for " + entry.mName);
+        }
+    }
+
+    private static byte[] inflate(Entry entry, byte[] compressed) throws ZipException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] content = new byte[(int) entry.mSize];
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != content.length) {
+                throw new ZipException("Truncated data for " + entry.mName);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid data for " + entry.mName + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the offset of the end of central directory record, -1 if it
+     * isn't within the given distance from the end of the file
+     */
+    private long findEocd(long fileSize, int maxCommentSize) throws IOException {
+        if (fileSize < EOCD_SIZE) {
+            throw new ZipException("File too short");
+        }
+        int length = (int) Math.min(fileSize, EOCD_SIZE + maxCommentSize);
+        long start = fileSize - length;
+        ByteBuffer tail = read(start, length);
+        for (int i = length - EOCD_SIZE; i >= 0; i--) {
+            // The comment must end the file
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    (tail.getShort(i + 20) & 0xffff) == length - EOCD_SIZE - i) {
+                return start + i;
+            }
+        }
+        return -1;
+    }
+
+    private Map<String, Entry> readCentralDirectory(long offset, int size, long count)
+            throws IOException {
+        ByteBuffer cd = read(offset, size);
+        Map<String, Entry> entries = new HashMap<>();
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CD_HEADER_SIZE > size || cd.getInt(position) != CD_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry " + i);
+            }
+            int method = cd.getShort(position + 10) & 0xffff;
+            long compressedSize = cd.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = cd.getInt(position + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(position + 42) & 0xffffffffL;
+            int nameStart = position + CD_HEADER_SIZE;
+            int extraStart = nameStart + nameLength;
+            int next = extraStart + extraLength + commentLength;
+            if (next > size) {
+                throw new ZipException("Invalid central directory entry " + i);
+            }
+
+            // The values that don't fit are in the zip64 extra field, in this order
+            int extra = findExtra(cd, extraStart, extraLength, ZIP64_EXTRA_ID);
+            if (extra >= 0) {
+                int extraEnd = extra + 4 + (cd.getShort(extra + 2) & 0xffff);
+                int field = extra + 4;
+                if (uncompressedSize == 0xffffffffL && field + 8 <= extraEnd) {
+                    uncompressedSize = cd.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == 0xffffffffL && field + 8 <= extraEnd) {
+                    compressedSize = cd.getLong(field);
+                    field += 8;
+                }
+                if (localHeaderOffset == 0xffffffffL && field + 8 <= extraEnd) {
+                    localHeaderOffset = cd.getLong(field);
+                }
+            }
+            if (localHeaderOffset < 0 || localHeaderOffset >= offset || compressedSize < 0 ||
+                    uncompressedSize < 0) {
+                throw new ZipException("Invalid central directory entry " + i);
+            }
+
+            byte[] name = new byte[nameLength];
+            cd.position(nameStart);
+            cd.get(name);
+            String entryName = new String(name, StandardCharsets.UTF_8);
+            entries.put(entryName, new Entry(entryName, method, compressedSize,
+                    uncompressedSize, localHeaderOffset));
+            position = next;
+        }
+        return entries;
+    }
+
+    /**
+     * @return the position of the extra field with the given id, -1 if none
+     */
+    private static int findExtra(ByteBuffer buffer, int start, int length, int id) {
+        int position = start;
+        int end = start + length;
+        while (position + 4 <= end) {
+            int fieldId = buffer.getShort(position) & 0xffff;
+            int fieldSize = buffer.getShort(position + 2) & 0xffff;
+            if (position + 4 + fieldSize > end) {
+                break;
+            }
+            if (fieldId == id) {
+                return position;
+            }
+            position += 4 + fieldSize;
+        }
+        return -1;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * What the file system tells about a file without reading it. Writing to the
+ * file or replacing it changes its identity, so a file whose identity didn't
+ * change still has the content it had.
+ */
+public final class FileIdentity {
+
+    private final long mSize;
+    private final long mModifiedNanos;
+    private final long mInode;
+
+    public FileIdentity(long size, long modifiedNanos, long inode) {
+        mSize = size;
+        mModifiedNanos = modifiedNanos;
+        mInode = inode;
+    }
+
+    /**
+     * Get the identity of the given file with a single stat call.
+     */
+    public static FileIdentity of(File file) throws IOException {
+        try {
+            StructStat stat = Os.stat(file.getAbsolutePath());
+            return new FileIdentity(stat.st_size,
+                    stat.st_mtim.tv_sec * 1000000000L + stat.st_mtim.tv_nsec, stat.st_ino);
+        } catch (ErrnoException e) {
+            throw new IOException("Could not stat " + file.getAbsolutePath(), e);
+        }
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public long getModifiedNanos() {
+        return mModifiedNanos;
+    }
+
+    public long getInode() {
+        return mInode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FileIdentity)) {
+            return false;
+        }
+        FileIdentity other = (FileIdentity) o;
+        return mSize == other.mSize && mModifiedNanos == other.mModifiedNanos &&
+                mInode == other.mInode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mInode) * 31 + Long.hashCode(mModifiedNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "size " + mSize + ", modified " + mModifiedNanos + ", inode " + mInode;
+    }
+}
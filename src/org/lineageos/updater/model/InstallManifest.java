@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What installing a package needs to know about it, read once when the package
+ * is verified so that installing it doesn't have to open it again.
+ */
+public final class InstallManifest {
+
+    private final boolean mABUpdate;
+    private final long mPayloadOffset;
+    private final long mPayloadSize;
+    private final List<String> mPayloadProperties;
+
+    private InstallManifest(boolean abUpdate, long payloadOffset, long payloadSize,
+            List<String> payloadProperties) {
+        mABUpdate = abUpdate;
+        mPayloadOffset = payloadOffset;
+        mPayloadSize = payloadSize;
+        mPayloadProperties = Collections.unmodifiableList(new ArrayList<>(payloadProperties));
+    }
+
+    /**
+     * @param payloadOffset offset of the payload in the package
+     * @param payloadProperties the key/value pairs handed to update_engine
+     */
+    public static InstallManifest forABUpdate(long payloadOffset, long payloadSize,
+            List<String> payloadProperties) {
+        return new InstallManifest(true, payloadOffset, payloadSize, payloadProperties);
+    }
+
+    public static InstallManifest forNonABUpdate() {
+        return new InstallManifest(false, 0, 0, Collections.emptyList());
+    }
+
+    public boolean isABUpdate() {
+        return mABUpdate;
+    }
+
+    public long getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public long getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    public List<String> getPayloadProperties() {
+        return mPayloadProperties;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof InstallManifest)) {
+            return false;
+        }
+        InstallManifest other = (InstallManifest) o;
+        return mABUpdate == other.mABUpdate && mPayloadOffset == other.mPayloadOffset &&
+                mPayloadSize == other.mPayloadSize &&
+                mPayloadProperties.equals(other.mPayloadProperties);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{mABUpdate, mPayloadOffset, mPayloadSize,
+                mPayloadProperties});
+    }
+}
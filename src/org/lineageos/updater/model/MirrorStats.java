@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+public class MirrorStats {
+
+    // Weight given to the newest sample in the moving averages
+    private static final double EWMA_ALPHA = 0.3;
+
+    // The score is the time needed to get this much data from the mirror
+    private static final double SCORE_BYTES = 8 * 1024 * 1024;
+    // Speed assumed for the mirrors never used to download
+    private static final double DEFAULT_THROUGHPUT = 1024 * 1024;
+    // Round trips needed before the first byte of a download over HTTPS
+    // (TCP handshake, TLS handshake and request)
+    private static final int FIRST_BYTE_ROUND_TRIPS = 4;
+
+    private final String mHost;
+    private double mLatency = -1;
+    private double mThroughput = -1;
+    private double mFirstByteTime = -1;
+    private int mSuccesses;
+    private int mFailures;
+    private long mLastSeen;
+
+    public MirrorStats(String host) {
+        mHost = host;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if never probed
+     */
+    public double getLatency() {
+        return mLatency;
+    }
+
+    public void setLatency(double latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * @return the smoothed time to first byte of the downloads in
+     *         milliseconds, or -1 if never used
+     */
+    public double getFirstByteTime() {
+        return mFirstByteTime;
+    }
+
+    public void setFirstByteTime(double firstByteTime) {
+        mFirstByteTime = firstByteTime;
+    }
+
+    /**
+     * @return the smoothed download speed in bytes per second, or -1 if never used
+     */
+    public double getThroughput() {
+        return mThroughput;
+    }
+
+    public void setThroughput(double throughput) {
+        mThroughput = throughput;
+    }
+
+    public int getSuccesses() {
+        return mSuccesses;
+    }
+
+    public void setSuccesses(int successes) {
+        mSuccesses = successes;
+    }
+
+    public int getFailures() {
+        return mFailures;
+    }
+
+    public void setFailures(int failures) {
+        mFailures = failures;
+    }
+
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        mLastSeen = lastSeen;
+    }
+
+    public boolean isFresh(long now, long ttl) {
+        return mLastSeen > 0 && now - mLastSeen < ttl;
+    }
+
+    public void addLatencySample(double latency, long now) {
+        mLatency = mLatency < 0 ? latency : ewma(mLatency, latency);
+        mSuccesses++;
+        mLastSeen = now;
+    }
+
+    public void addFirstByteSample(double firstByteTime, long now) {
+        mFirstByteTime = mFirstByteTime < 0 ? firstByteTime : ewma(mFirstByteTime, firstByteTime);
+        mSuccesses++;
+        mLastSeen = now;
+    }
+
+    public void addThroughputSample(double throughput, long now) {
+        mThroughput = mThroughput < 0 ? throughput : ewma(mThroughput, throughput);
+        mSuccesses++;
+        mLastSeen = now;
+    }
+
+    public void addFailure(long now) {
+        mFailures++;
+        mLastSeen = now;
+    }
+
+    /**
+     * Ranking score of the mirror, lower is better. It's the expected time in
+     * milliseconds to get the first bytes of a download: the time to first
+     * byte, estimated from the round trip time if the mirror was never used,
+     * plus the transfer time at the measured speed. The time is inflated by
+     * the share of failed attempts so that flaky mirrors sink in the list.
+     *
+     * @return the score, or -1 if the latency of the mirror is unknown
+     */
+    public double getScore() {
+        double firstByteTime = mFirstByteTime >= 0 ? mFirstByteTime :
+                mLatency >= 0 ? mLatency * FIRST_BYTE_ROUND_TRIPS : -1;
+        if (firstByteTime < 0) {
+            return -1;
+        }
+        double throughput = mThroughput > 0 ? mThroughput : DEFAULT_THROUGHPUT;
+        double time = firstByteTime + SCORE_BYTES * 1000 / throughput;
+        int attempts = mSuccesses + mFailures;
+        double failureRatio = attempts > 0 ? (double) mFailures / attempts : 0;
+        return time * (1 + 4 * failureRatio);
+    }
+
+    private static double ewma(double average, double sample) {
+        return EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * average;
+    }
+}
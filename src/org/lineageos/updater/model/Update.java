@@ -17,6 +17,11 @@ package org.lineageos.updater.model;
 
 import java.io.File;
 
+/**
+ * Mutable state of an update. Not thread safe: the updates known to the
+ * controller are only modified by its state thread, everyone else reads
+ * {@link UpdateSnapshot}s of them.
+ */
 public class Update extends UpdateBase implements UpdateInfo {
 
     private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
@@ -28,6 +33,7 @@ public class Update extends UpdateBase implements UpdateInfo {
     private int mInstallProgress;
     private boolean mAvailableOnline;
     private boolean mIsFinalizing;
+    private InstallManifest mInstallManifest;
 
     public Update() {
     }
@@ -47,6 +53,7 @@ public class Update extends UpdateBase implements UpdateInfo {
         mInstallProgress = update.getInstallProgress();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
+        mInstallManifest = update.getInstallManifest();
     }
 
     @Override
@@ -129,4 +136,13 @@ public class Update extends UpdateBase implements UpdateInfo {
     public void setFinalizing(boolean finalizing) {
         mIsFinalizing = finalizing;
     }
+
+    @Override
+    public InstallManifest getInstallManifest() {
+        return mInstallManifest;
+    }
+
+    public void setInstallManifest(InstallManifest installManifest) {
+        mInstallManifest = installManifest;
+    }
 }
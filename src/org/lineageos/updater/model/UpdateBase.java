@@ -15,6 +15,9 @@
  */
 package org.lineageos.updater.model;
 
+import java.util.Collections;
+import java.util.List;
+
 public class UpdateBase implements UpdateBaseInfo {
 
     private String mName;
@@ -24,6 +27,7 @@ public class UpdateBase implements UpdateBaseInfo {
     private String mType;
     private String mVersion;
     private long mFileSize;
+    private List<UpdateMirror> mMirrors = Collections.emptyList();
 
     public UpdateBase() {
     }
@@ -36,6 +40,7 @@ public class UpdateBase implements UpdateBaseInfo {
         mType = update.getType();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mMirrors = update.getMirrors();
     }
 
     @Override
@@ -100,4 +105,13 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
     }
+
+    @Override
+    public List<UpdateMirror> getMirrors() {
+        return mMirrors;
+    }
+
+    public void setMirrors(List<UpdateMirror> mirrors) {
+        mMirrors = Collections.unmodifiableList(mirrors);
+    }
 }
@@ -15,6 +15,8 @@
  */
 package org.lineageos.updater.model;
 
+import java.util.List;
+
 public interface UpdateBaseInfo {
     String getName();
 
@@ -29,4 +31,6 @@ public interface UpdateBaseInfo {
     String getDownloadUrl();
 
     long getFileSize();
+
+    List<UpdateMirror> getMirrors();
 }
@@ -37,4 +37,9 @@ public interface UpdateInfo extends UpdateBaseInfo {
     boolean getAvailableOnline();
 
     boolean getFinalizing();
+
+    /**
+     * @return what installing the package needs to know, null if unknown
+     */
+    InstallManifest getInstallManifest();
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+/**
+ * Mirror of an update as listed in the update catalog.
+ */
+public class UpdateMirror {
+
+    private final String mName;
+    private final String mUrl;
+    private final int mWeight;
+
+    public UpdateMirror(String name, String url, int weight) {
+        mName = name;
+        mUrl = url;
+        mWeight = weight;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return the share of the traffic the server wants the mirror to take,
+     * relative to the other mirrors of the update. 0 means not to use it.
+     */
+    public int getWeight() {
+        return mWeight;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable copy of the state of an update at a given time. All the values
+ * are captured together, so a reader never sees the progress of one state
+ * with the status of an other. Being immutable, a snapshot can be handed to
+ * any thread without synchronization.
+ */
+public final class UpdateSnapshot implements UpdateInfo {
+
+    private final String mName;
+    private final String mDownloadUrl;
+    private final String mDownloadId;
+    private final long mTimestamp;
+    private final String mType;
+    private final String mVersion;
+    private final long mFileSize;
+    private final List<UpdateMirror> mMirrors;
+    private final UpdateStatus mStatus;
+    private final int mPersistentStatus;
+    private final File mFile;
+    private final int mProgress;
+    private final long mEta;
+    private final long mSpeed;
+    private final int mInstallProgress;
+    private final boolean mAvailableOnline;
+    private final boolean mIsFinalizing;
+    private final InstallManifest mInstallManifest;
+
+    public UpdateSnapshot(UpdateInfo update) {
+        mName = update.getName();
+        mDownloadUrl = update.getDownloadUrl();
+        mDownloadId = update.getDownloadId();
+        mTimestamp = update.getTimestamp();
+        mType = update.getType();
+        mVersion = update.getVersion();
+        mFileSize = update.getFileSize();
+        mMirrors = Collections.unmodifiableList(new ArrayList<>(update.getMirrors()));
+        mStatus = update.getStatus();
+        mPersistentStatus = update.getPersistentStatus();
+        mFile = update.getFile();
+        mProgress = update.getProgress();
+        mEta = update.getEta();
+        mSpeed = update.getSpeed();
+        mInstallProgress = update.getInstallProgress();
+        mAvailableOnline = update.getAvailableOnline();
+        mIsFinalizing = update.getFinalizing();
+        mInstallManifest = update.getInstallManifest();
+    }
+
+    /**
+     * @return true if this snapshot still reflects the given update, in which
+     * case it can be handed out again instead of taking a new one
+     */
+    public boolean isSnapshotOf(UpdateInfo update) {
+        return mStatus == update.getStatus() &&
+                mProgress == update.getProgress() &&
+                mEta == update.getEta() &&
+                mSpeed == update.getSpeed() &&
+                mInstallProgress == update.getInstallProgress() &&
+                mIsFinalizing == update.getFinalizing() &&
+                mPersistentStatus == update.getPersistentStatus() &&
+                mAvailableOnline == update.getAvailableOnline() &&
+                mFileSize == update.getFileSize() &&
+                mTimestamp == update.getTimestamp() &&
+                Objects.equals(mFile, update.getFile()) &&
+                Objects.equals(mInstallManifest, update.getInstallManifest()) &&
+                Objects.equals(mDownloadUrl, update.getDownloadUrl()) &&
+                Objects.equals(mDownloadId, update.getDownloadId()) &&
+                Objects.equals(mName, update.getName()) &&
+                Objects.equals(mType, update.getType()) &&
+                Objects.equals(mVersion, update.getVersion()) &&
+                mMirrors.equals(update.getMirrors());
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String getType() {
+        return mType;
+    }
+
+    @Override
+    public String getVersion() {
+        return mVersion;
+    }
+
+    @Override
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    @Override
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    @Override
+    public List<UpdateMirror> getMirrors() {
+        return mMirrors;
+    }
+
+    @Override
+    public UpdateStatus getStatus() {
+        return mStatus;
+    }
+
+    @Override
+    public int getPersistentStatus() {
+        return mPersistentStatus;
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public int getProgress() {
+        return mProgress;
+    }
+
+    @Override
+    public long getEta() {
+        return mEta;
+    }
+
+    @Override
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    @Override
+    public int getInstallProgress() {
+        return mInstallProgress;
+    }
+
+    @Override
+    public boolean getAvailableOnline() {
+        return mAvailableOnline;
+    }
+
+    @Override
+    public boolean getFinalizing() {
+        return mIsFinalizing;
+    }
+
+    @Override
+    public InstallManifest getInstallManifest() {
+        return mInstallManifest;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.io.File;
+
+/**
+ * A package that passed the verification, as it was when verified. The
+ * identity tells cheaply whether the file may have changed since, the digest
+ * tells whether its content did.
+ */
+public final class VerifiedFile {
+
+    private final String mPath;
+    private final FileIdentity mIdentity;
+    private final int mChunkSize;
+    private final String mDigest;
+
+    /**
+     * @param chunkSize chunk size the digest was computed with
+     * @param digest hex encoded chunked digest of the file
+     * @see org.lineageos.updater.misc.ChunkedHasher
+     */
+    public VerifiedFile(String path, FileIdentity identity, int chunkSize, String digest) {
+        mPath = path;
+        mIdentity = identity;
+        mChunkSize = chunkSize;
+        mDigest = digest;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public FileIdentity getIdentity() {
+        return mIdentity;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public String getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * @return true if the given file is the one that was verified, untouched
+     */
+    public boolean isSameFile(File file, FileIdentity identity) {
+        return mPath.equals(file.getAbsolutePath()) && mIdentity.equals(identity);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CancelWatchdogTest {
+
+    private static final long TIMEOUT_MS = 500;
+    // Leeway for the timer thread of a busy machine
+    private static final long SLACK_MS = 1000;
+
+    private ServerSocket mServer;
+    private Socket mAccepted;
+    private ScheduledExecutorService mTimer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mTimer.shutdownNow();
+        if (mAccepted != null) {
+            mAccepted.close();
+        }
+        mServer.close();
+    }
+
+    /**
+     * Start a request against the server, which accepts it and never replies.
+     * The returned thread stays blocked reading the response.
+     */
+    private Thread startStalledRequest() throws IOException {
+        URL url = new URL("http", mServer.getInetAddress().getHostAddress(),
+                mServer.getLocalPort(), "/update.zip");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        Thread reader = new Thread(() -> {
+            try {
+                connection.getResponseCode();
+            } catch (IOException e) {
+                // Expected once the server closes the socket
+            }
+        });
+        reader.start();
+        mAccepted = mServer.accept();
+        return reader;
+    }
+
+    @Test
+    public void reportsStalledDownloadWithinTimeout() throws Exception {
+        Thread reader = startStalledRequest();
+        AtomicBoolean reported = new AtomicBoolean();
+        CountDownLatch fired = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        new CancelWatchdog(TIMEOUT_MS, reported, fired::countDown).start(mTimer);
+
+        assertTrue("Watchdog did not fire",
+                fired.await(TIMEOUT_MS + SLACK_MS, TimeUnit.MILLISECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Watchdog fired after " + elapsedMs + " ms",
+                elapsedMs >= TIMEOUT_MS && elapsedMs <= TIMEOUT_MS + SLACK_MS);
+        // The callback didn't wait for the blocked read
+        assertTrue(reader.isAlive());
+    }
+
+    @Test
+    public void staysSilentOnceReported() throws Exception {
+        startStalledRequest();
+        AtomicBoolean reported = new AtomicBoolean();
+        CountDownLatch fired = new CountDownLatch(1);
+
+        new CancelWatchdog(TIMEOUT_MS, reported, fired::countDown).start(mTimer);
+        reported.set(true);
+
+        assertFalse("Watchdog fired after the outcome was reported",
+                fired.await(TIMEOUT_MS + SLACK_MS, TimeUnit.MILLISECONDS));
+    }
+}